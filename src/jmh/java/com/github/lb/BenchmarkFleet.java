@@ -0,0 +1,58 @@
+package com.github.lb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds load balancers and node fleets for the jmh benchmarks.
+ * 
+ * @author gaurav
+ */
+final class BenchmarkFleet {
+  private static final IdProvider idProvider = new RandomIdProvider();
+
+  static final int ZONES = 3;
+
+  private BenchmarkFleet() {}
+
+  static String zone(final int index) {
+    return "zone-" + index;
+  }
+
+  static LoadBalancer newLoadBalancer(final LBStrategy strategy) {
+    switch (strategy) {
+      case CONSISTENT_HASH:
+        // keep 100k-node rings within a reasonable heap
+        return new ConsistentHashLB(16);
+      case BOUNDED_LOAD_CONSISTENT_HASH:
+        return new BoundedLoadConsistentHashLB(16, BoundedLoadConsistentHashLB.DEFAULT_EPSILON);
+      case ZONE_AWARE:
+        return LoadBalancerFactory.newZoneAware(zone(0),
+            LBStrategy.SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES);
+      case SUBSETTING:
+        // one of 100 clients balancing over 32 nodes
+        return LoadBalancerFactory
+            .newSubsetting(LBStrategy.SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES, 0, 100, 32);
+      default:
+        return LoadBalancerFactory.newLoadBalancer(strategy);
+    }
+  }
+
+  /**
+   * @return nodes with random weights in [1, 10] and random loads in [0, 1000), spread round robin
+   *         over {@link #ZONES} zones
+   */
+  static List<Node> newNodes(final int count, final long seed) {
+    final Random random = new Random(seed);
+    final List<Node> nodes = new ArrayList<>(count);
+    for (int iter = 0; iter < count; iter++) {
+      final Node node = new Node(idProvider, zone(iter % ZONES));
+      node.setWeightValue(1 + random.nextInt(10));
+      node.setLoadValue(random.nextInt(1000));
+      nodes.add(node);
+    }
+    return nodes;
+  }
+
+}
@@ -0,0 +1,82 @@
+package com.github.lb;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures selections running alongside membership churn and load reports. Each group runs 14
+ * selecting threads, 1 thread adding and removing spare nodes and 1 thread reporting loads.
+ * 
+ * @author gaurav
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixedWorkloadBenchmark {
+  private static final int SPARES = 64;
+
+  @Param
+  public LBStrategy strategy;
+
+  @Param({"2", "64", "1024", "100000"})
+  public int nodes;
+
+  private LoadBalancer lb;
+  private Node[] fleet;
+  private Node[] spares;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    lb = BenchmarkFleet.newLoadBalancer(strategy);
+    final List<Node> fleetNodes = BenchmarkFleet.newNodes(nodes, 42L);
+    lb.addNodes(fleetNodes);
+    fleet = fleetNodes.toArray(new Node[0]);
+    spares = BenchmarkFleet.newNodes(SPARES, 7L).toArray(new Node[0]);
+    lb.selectNode();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(14)
+  public Node select() {
+    return lb.selectNode();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public boolean churn() {
+    final Node spare = spares[ThreadLocalRandom.current().nextInt(SPARES)];
+    return lb.addNode(spare) && lb.removeNode(spare);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public float reportLoad() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final Node node = fleet[random.nextInt(fleet.length)];
+    node.setLoadValue(random.nextInt(1000));
+    return node.getLoadValue();
+  }
+
+}
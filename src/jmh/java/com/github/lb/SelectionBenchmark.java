@@ -0,0 +1,73 @@
+package com.github.lb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures selectNode() throughput and latency of every strategy across fleet sizes and thread
+ * counts, against a static fleet.
+ * 
+ * @author gaurav
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectionBenchmark {
+  // all strategies unless overridden with -p strategy=...
+  @Param
+  public LBStrategy strategy;
+
+  @Param({"2", "64", "1024", "100000"})
+  public int nodes;
+
+  private LoadBalancer lb;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    lb = BenchmarkFleet.newLoadBalancer(strategy);
+    lb.addNodes(BenchmarkFleet.newNodes(nodes, 42L));
+    // warm any derived selection tables before measuring
+    lb.selectNode();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Node select01Thread() {
+    return lb.selectNode();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Node select04Threads() {
+    return lb.selectNode();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Node select16Threads() {
+    return lb.selectNode();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Node select64Threads() {
+    return lb.selectNode();
+  }
+
+}
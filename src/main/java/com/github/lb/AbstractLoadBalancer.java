@@ -0,0 +1,1010 @@
+package com.github.lb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Skeleton shared by load balancer implementations that keep their membership in a
+ * {@link NodeRegistry}. Implementations only need to pick a node out of the currently published
+ * snapshot; membership changes never block selections and selections never block each other.
+ *
+ * @author gaurav
+ */
+public abstract class AbstractLoadBalancer implements LoadBalancer {
+  // bounds the redraws of a selection landing on a node in slow start
+  private static final int MAX_RAMP_ATTEMPTS = 4;
+  // bounds the redraws of a selection landing on a saturated node before scanning for a free one
+  private static final int MAX_SATURATED_ATTEMPTS = 4;
+  // bounds the redraws of a selection landing on an excluded node before scanning for another one
+  private static final int MAX_EXCLUDED_ATTEMPTS = 4;
+
+  protected final Logger logger = LogManager.getLogger(getClass().getSimpleName());
+
+  protected final NodeRegistry registry = new NodeRegistry(this::weightsChanged);
+
+  private volatile SelectionListener selectionListener = SelectionListener.NOOP;
+  private volatile OutlierDetector outlierDetector;
+  private volatile SlowStart slowStart;
+  private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+  // set while a rebuild of weight-derived tables is scheduled
+  private final AtomicBoolean weightRebuildPending = new AtomicBoolean();
+  // async selections waiting for a node or for capacity, oldest first
+  private final ConcurrentLinkedQueue<Waiter<?>> waiters = new ConcurrentLinkedQueue<>();
+
+  @Override
+  public Node selectNode() {
+    return selectNode(false, 0L, null);
+  }
+
+  @Override
+  public Node selectNode(final CharSequence key) {
+    if (key == null) {
+      throw new IllegalArgumentException("Cannot select a node for a null key");
+    }
+    return selectNode(true, Hashing.hash64(key), null);
+  }
+
+  @Override
+  public Node selectNode(final long key) {
+    return selectNode(true, Hashing.mix64(key), null);
+  }
+
+  @Override
+  public Node selectNode(final Exclusion exclusion) {
+    validateExclusion(exclusion);
+    return selectNode(false, 0L, exclusion);
+  }
+
+  @Override
+  public Node selectNode(final CharSequence key, final Exclusion exclusion) {
+    if (key == null) {
+      throw new IllegalArgumentException("Cannot select a node for a null key");
+    }
+    validateExclusion(exclusion);
+    return selectNode(true, Hashing.hash64(key), exclusion);
+  }
+
+  @Override
+  public int selectHedged(final Exclusion exclusion, final Node[] out) {
+    validateExclusion(exclusion);
+    if (out == null || out.length < 2) {
+      throw new IllegalArgumentException("Cannot select a hedged pair into given array");
+    }
+    final NodeSnapshot snapshot = registry.snapshot();
+    final SelectionListener listener = selectionListener;
+    if (snapshot.isEmpty()) {
+      if (listener != SelectionListener.NOOP) {
+        listener.onEmptySelection();
+      }
+      return 0;
+    }
+    final long start = System.nanoTime();
+    final int selected;
+    try {
+      selected = replaceSaturated(snapshot, exclusion, out, selectHedged(snapshot, exclusion, out));
+    } catch (SaturatedException saturated) {
+      if (listener != SelectionListener.NOOP) {
+        listener.onFailedSelection();
+      }
+      throw saturated;
+    }
+    if (listener != SelectionListener.NOOP) {
+      if (selected == 0) {
+        listener.onFailedSelection();
+      }
+      for (int iter = 0; iter < selected; iter++) {
+        listener.onSelection(out[iter], (System.nanoTime() - start) / selected);
+      }
+    }
+    return selected;
+  }
+
+  private static void validateExclusion(final Exclusion exclusion) {
+    if (exclusion == null) {
+      throw new IllegalArgumentException("Cannot select with a null exclusion");
+    }
+  }
+
+  private Node selectNode(final boolean keyed, final long keyHash, final Exclusion exclusion) {
+    final NodeSnapshot snapshot = registry.snapshot();
+    final SelectionListener listener = selectionListener;
+    if (listener == SelectionListener.NOOP) {
+      if (snapshot.isEmpty()) {
+        return null;
+      }
+      return selectUnsaturated(snapshot, keyed, keyHash, exclusion);
+    }
+    if (snapshot.isEmpty()) {
+      listener.onEmptySelection();
+      return null;
+    }
+    final long start = System.nanoTime();
+    final Node node;
+    try {
+      node = selectUnsaturated(snapshot, keyed, keyHash, exclusion);
+    } catch (SaturatedException saturated) {
+      listener.onFailedSelection();
+      throw saturated;
+    }
+    recordSelection(listener, node, start);
+    return node;
+  }
+
+  private Node selectUnsaturated(final NodeSnapshot snapshot, final boolean keyed,
+      final long keyHash, final Exclusion exclusion) {
+    final boolean excluding = exclusion != null && !exclusion.isEmpty();
+    Node node = pick(snapshot, keyed, keyHash, excluding ? exclusion : null);
+    if (node == null || !node.isSaturated()) {
+      // null only if every selectable node is excluded
+      return node;
+    }
+    // keyed selections would only land on the same node again
+    for (int attempt = 0; !keyed && attempt < MAX_SATURATED_ATTEMPTS; attempt++) {
+      node = pick(snapshot, false, 0L, excluding ? exclusion : null);
+      if (node != null && !node.isSaturated()) {
+        return node;
+      }
+    }
+    // keys spill from a key-derived offset, so they keep sticking to the same spare node
+    final int[] handles = snapshot.handles();
+    final int size = handles.length;
+    int index = keyed ? (int) Long.remainderUnsigned(keyHash, size)
+        : ThreadLocalRandom.current().nextInt(size);
+    boolean allExcluded = true;
+    for (int iter = 0; iter < size; iter++) {
+      if (!excluding || !exclusion.containsHandle(handles[index])) {
+        if (!NodeTable.saturated(handles[index])) {
+          return snapshot.get(index);
+        }
+        allExcluded = false;
+      }
+      if (++index == size) {
+        index = 0;
+      }
+    }
+    if (allExcluded) {
+      return null;
+    }
+    throw new SaturatedException(size);
+  }
+
+  private Node pick(final NodeSnapshot snapshot, final boolean keyed, final long keyHash,
+      final Exclusion exclusion) {
+    if (exclusion == null) {
+      return keyed ? select(snapshot, keyHash) : selectAdmitted(snapshot);
+    }
+    return keyed ? select(snapshot, keyHash, exclusion) : select(snapshot, exclusion);
+  }
+
+  // keyed selections keep their affinity and are never redrawn for slow start
+  private Node selectAdmitted(final NodeSnapshot snapshot) {
+    final Node node = select(snapshot);
+    final SlowStart ramp = slowStart;
+    if (ramp == null) {
+      return node;
+    }
+    final long now = System.nanoTime();
+    final int first = rampingFrom(snapshot, ramp, now);
+    return first == snapshot.size() ? node : admit(snapshot, node, ramp, first, now);
+  }
+
+  private int selectBatch(final NodeSnapshot snapshot, final int count, final Node[] out,
+      final boolean distinct) {
+    if (distinct) {
+      return selectDistinct(snapshot, count, out);
+    }
+    final int selected = select(snapshot, count, out);
+    final SlowStart ramp = slowStart;
+    if (ramp != null) {
+      final long now = System.nanoTime();
+      final int first = rampingFrom(snapshot, ramp, now);
+      for (int iter = 0; iter < selected && first < snapshot.size(); iter++) {
+        out[iter] = admit(snapshot, out[iter], ramp, first, now);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * @return the index from which on nodes are still in slow start, size() if none are
+   */
+  private static int rampingFrom(final NodeSnapshot snapshot, final SlowStart ramp,
+      final long nowNanos) {
+    final int size = snapshot.size();
+    if (nowNanos - snapshot.getJoinedNanos(size - 1) >= ramp.getWindowNanos()) {
+      return size;
+    }
+    return snapshot.joinedAfter(nowNanos - ramp.getWindowNanos());
+  }
+
+  /**
+   * Admit a selected node in slow start with probability of its ramp factor relative to the longest
+   * joined node, otherwise redraw. Nodes that joined together, e.g. at startup, are not ramped
+   * against each other.
+   */
+  private Node admit(final NodeSnapshot snapshot, Node node, final SlowStart ramp, final int first,
+      final long nowNanos) {
+    final double baseline = ramp.factor(nowNanos - snapshot.getJoinedNanos(0));
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int attempt = 0; attempt < MAX_RAMP_ATTEMPTS; attempt++) {
+      // nodes from another snapshot, e.g. a delegate's, are not ramped here
+      final int index = snapshot.indexOfHandle(node.getHandle());
+      if (index < first || random.nextDouble() * baseline < ramp
+          .factor(nowNanos - snapshot.getJoinedNanos(index))) {
+        return node;
+      }
+      node = select(snapshot);
+    }
+    return node;
+  }
+
+  @Override
+  public int selectNodes(final int count, final Node[] out) {
+    return selectNodes(count, out, false);
+  }
+
+  @Override
+  public int selectDistinctNodes(final int count, final Node[] out) {
+    return selectNodes(count, out, true);
+  }
+
+  private int selectNodes(final int count, final Node[] out, final boolean distinct) {
+    if (count < 0 || out == null || out.length < count) {
+      throw new IllegalArgumentException("Cannot select " + count + " nodes into given array");
+    }
+    final NodeSnapshot snapshot = registry.snapshot();
+    final SelectionListener listener = selectionListener;
+    if (snapshot.isEmpty()) {
+      if (listener != SelectionListener.NOOP) {
+        listener.onEmptySelection();
+      }
+      return 0;
+    }
+    if (count == 0) {
+      return 0;
+    }
+    if (listener == SelectionListener.NOOP) {
+      return replaceSaturated(snapshot, out, selectBatch(snapshot, count, out, distinct),
+          distinct);
+    }
+    final long start = System.nanoTime();
+    final int selected;
+    try {
+      selected = replaceSaturated(snapshot, out, selectBatch(snapshot, count, out, distinct),
+          distinct);
+    } catch (SaturatedException saturated) {
+      listener.onFailedSelection();
+      throw saturated;
+    }
+    if (selected == 0) {
+      listener.onFailedSelection();
+      return 0;
+    }
+    // the batch cost is amortized over its selections
+    final long latencyNanos = (System.nanoTime() - start) / selected;
+    for (int iter = 0; iter < selected; iter++) {
+      listener.onSelection(out[iter], latencyNanos);
+    }
+    return selected;
+  }
+
+  /**
+   * Replace saturated nodes of a batch with spare ones, redrawn like
+   * {@link #selectNode(Exclusion)} does or, for distinct batches, scanned from a random offset so
+   * that they are not in the batch yet. The batch only comes up short if not enough nodes are
+   * spare.
+   * 
+   * @return the number of nodes in out
+   * @throws SaturatedException if every node is saturated
+   */
+  private int replaceSaturated(final NodeSnapshot snapshot, final Node[] out, final int selected,
+      final boolean distinct) {
+    int kept = compactUnsaturated(out, selected);
+    if (kept == selected) {
+      return selected;
+    }
+    if (distinct) {
+      final Node[] nodes = snapshot.nodes();
+      final int offset = ThreadLocalRandom.current().nextInt(nodes.length);
+      for (int iter = 0; iter < nodes.length && kept < selected; iter++) {
+        final Node node = nodes[(offset + iter) % nodes.length];
+        if (!node.isSaturated() && !contains(out, kept, node)) {
+          out[kept++] = node;
+        }
+      }
+      if (kept == 0) {
+        throw new SaturatedException(snapshot.size());
+      }
+    } else {
+      try {
+        while (kept < selected) {
+          final Node node = selectUnsaturated(snapshot, false, 0L, null);
+          out[kept++] = node;
+        }
+      } catch (SaturatedException saturated) {
+        // the rest got saturated in between, keep what is left
+        if (kept == 0) {
+          throw saturated;
+        }
+      }
+    }
+    Arrays.fill(out, kept, selected, null);
+    return kept;
+  }
+
+  /**
+   * Replace saturated nodes of a hedged pair with spare ones that are neither excluded nor already
+   * in the pair, redrawn like {@link #selectNode(Exclusion)} does.
+   * 
+   * @return the number of nodes in out
+   * @throws SaturatedException if every node that is not excluded is saturated
+   */
+  private int replaceSaturated(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out, final int selected) {
+    int kept = compactUnsaturated(out, selected);
+    while (kept < selected) {
+      // the kept primary is excluded for the redraw only, the exclusion is left as given
+      final boolean scratch = kept > 0 && exclusion.add(out[0]);
+      Node node = null;
+      try {
+        node = selectUnsaturated(snapshot, false, 0L, exclusion);
+      } catch (SaturatedException saturated) {
+        if (kept == 0) {
+          throw saturated;
+        }
+      } finally {
+        if (scratch) {
+          exclusion.removeLast();
+        }
+      }
+      if (node == null) {
+        break;
+      }
+      out[kept++] = node;
+    }
+    Arrays.fill(out, kept, selected, null);
+    return kept;
+  }
+
+  /**
+   * Drop saturated nodes from a batch, compacting the rest to the front of out in order.
+   * 
+   * @return the number of nodes left
+   */
+  private static int compactUnsaturated(final Node[] out, final int selected) {
+    int kept = 0;
+    for (int iter = 0; iter < selected; iter++) {
+      if (!out[iter].isSaturated()) {
+        out[kept++] = out[iter];
+      }
+    }
+    return kept;
+  }
+
+  private static void recordSelection(final SelectionListener listener, final Node node,
+      final long startNanos) {
+    if (node == null) {
+      listener.onFailedSelection();
+    } else {
+      listener.onSelection(node, System.nanoTime() - startNanos);
+    }
+  }
+
+  @Override
+  public Lease lease() {
+    return lease(false, 0L);
+  }
+
+  @Override
+  public Lease lease(final CharSequence key) {
+    if (key == null) {
+      throw new IllegalArgumentException("Cannot lease a node for a null key");
+    }
+    return lease(true, Hashing.hash64(key));
+  }
+
+  @Override
+  public Lease lease(final long key) {
+    return lease(true, Hashing.mix64(key));
+  }
+
+  /**
+   * Select and acquire a node, reselecting if a concurrent lease took the last free slot of the
+   * selected node in between.
+   */
+  private Lease lease(final boolean keyed, final long keyHash) {
+    for (int attempt = 0;; attempt++) {
+      final Node node = selectNode(keyed, keyHash, null);
+      if (node == null) {
+        return null;
+      }
+      final Lease lease = Lease.tryAcquire(this, node);
+      if (lease != null) {
+        return lease;
+      }
+      if (attempt == MAX_SATURATED_ATTEMPTS) {
+        throw new SaturatedException(registry.snapshot().size());
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<Node> selectNodeAsync() {
+    return await(AbstractLoadBalancer::pollNode, Long.MAX_VALUE);
+  }
+
+  @Override
+  public CompletableFuture<Node> selectNodeAsync(final long timeout, final TimeUnit unit) {
+    return await(AbstractLoadBalancer::pollNode, timeoutNanos(timeout, unit));
+  }
+
+  @Override
+  public CompletableFuture<Lease> leaseAsync() {
+    return await(AbstractLoadBalancer::pollLease, Long.MAX_VALUE);
+  }
+
+  @Override
+  public CompletableFuture<Lease> leaseAsync(final long timeout, final TimeUnit unit) {
+    return await(AbstractLoadBalancer::pollLease, timeoutNanos(timeout, unit));
+  }
+
+  private static long timeoutNanos(final long timeout, final TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("Cannot use a null time unit");
+    }
+    if (timeout < 0L) {
+      throw new IllegalArgumentException("Cannot use a timeout < 0");
+    }
+    return unit.toNanos(timeout);
+  }
+
+  private Node pollNode() {
+    try {
+      return selectNode();
+    } catch (SaturatedException saturated) {
+      return null;
+    }
+  }
+
+  private Lease pollLease() {
+    try {
+      return lease();
+    } catch (SaturatedException saturated) {
+      return null;
+    }
+  }
+
+  /**
+   * Complete right away if possible, else queue a waiter that {@link #wakeWaiters()} completes
+   * once nodes get added or capacity gets released. Waiting never blocks a thread.
+   */
+  private <T> CompletableFuture<T> await(final Function<AbstractLoadBalancer, T> acquirer,
+      final long timeoutNanos) {
+    final T result = acquirer.apply(this);
+    if (result != null) {
+      return CompletableFuture.completedFuture(result);
+    }
+    final Waiter<T> waiter = new Waiter<>(acquirer);
+    if (timeoutNanos == 0L) {
+      waiter.future.completeExceptionally(new TimeoutException("No node available"));
+      return waiter.future;
+    }
+    waiters.add(waiter);
+    if (timeoutNanos != Long.MAX_VALUE) {
+      final ScheduledFuture<?> timeout = Scheduler.schedule(() -> waiter.future
+          .completeExceptionally(new TimeoutException("No node available in time")), timeoutNanos);
+      waiter.future.whenComplete((ignored, problem) -> timeout.cancel(false));
+    }
+    // cancelled and timed out waiters leave the queue right away
+    waiter.future.whenComplete((ignored, problem) -> {
+      if (problem != null) {
+        waiters.remove(waiter);
+      }
+    });
+    // a node may have freed up before the waiter got queued
+    wakeWaiters();
+    return waiter.future;
+  }
+
+  /**
+   * Hand freshly available nodes or capacity to the oldest waiters. Cheap if nobody waits.
+   */
+  void wakeWaiters() {
+    Waiter<?> waiter;
+    while ((waiter = waiters.peek()) != null) {
+      if (waiter.future.isDone()) {
+        waiters.remove(waiter);
+      } else if (!waiter.tryComplete(this)) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void recordResponse(final Node node, final long latencyNanos, final boolean success) {
+    if (node == null) {
+      throw new IllegalArgumentException("Cannot record a response for a null node");
+    }
+    onResponse(node, latencyNanos, success);
+    final AdaptiveConcurrencyLimit limit = concurrencyLimit;
+    if (limit != null) {
+      limit.onResponse(node, latencyNanos, success);
+    }
+    final OutlierDetector detector = outlierDetector;
+    if (detector != null && detector.record(node, success, System.nanoTime())) {
+      eject(detector, node);
+    }
+  }
+
+  private void eject(final OutlierDetector detector, final Node node) {
+    if (!registry.ejectNode(node, detector.getMaxEjectionPercent())) {
+      return;
+    }
+    final long backoffNanos = detector.onEjected(node, System.nanoTime());
+    published();
+    logger.warn("Ejected " + node + " for " + TimeUnit.NANOSECONDS.toMillis(backoffNanos) + "ms");
+    Scheduler.schedule(() -> readmit(detector, node), backoffNanos);
+  }
+
+  /**
+   * Eject the members that another load balancer sharing the outlier detector has ejected, e.g. the
+   * one this balancer replaces, keeping their re-admission deadlines.
+   */
+  void adoptEjections() {
+    final OutlierDetector detector = outlierDetector;
+    if (detector == null) {
+      return;
+    }
+    for (final Node node : registry.snapshot().getMembers()) {
+      // ejected without regard to the percentage, the other balancer enforced it already
+      if (detector.isEjected(node) && registry.ejectNode(node, 100)) {
+        final long delayNanos = Math.max(0L, detector.getReadmitNanos(node) - System.nanoTime());
+        published();
+        logger.info("Took over ejected " + node);
+        Scheduler.schedule(() -> readmit(detector, node), delayNanos);
+      }
+    }
+  }
+
+  // runs on the scheduler thread
+  private void readmit(final OutlierDetector detector, final Node node) {
+    final long now = System.nanoTime();
+    if (outlierDetector != detector) {
+      return;
+    }
+    // a node ejected by another balancer may have been re-admitted there already
+    if (detector.isEjected(node)) {
+      if (!detector.isDue(node, now)) {
+        return;
+      }
+      detector.onReadmitted(node, now);
+    }
+    if (registry.readmitNode(node)) {
+      published();
+      logger.info("Readmitted " + node);
+      wakeWaiters();
+    } else if (registry.snapshot().getMember(node.getId()) != node) {
+      // removed while ejected, after its health was forgotten
+      detector.forget(node);
+    }
+  }
+
+  /**
+   * Invoked when this load balancer replaces previous, after all of its nodes got added, so that
+   * strategies can carry over per-node state they do not keep on the nodes themselves.
+   */
+  protected void onTakeOver(final LoadBalancer previous) {}
+
+  /**
+   * Invoked for every reported response, strategies tracking latency or outcomes hook in here.
+   */
+  protected void onResponse(final Node node, final long latencyNanos, final boolean success) {}
+
+  /**
+   * Invoked exactly once per lease when it is acquired, after the node's in-flight count got
+   * incremented.
+   */
+  protected void onAcquire(final Node node) {}
+
+  /**
+   * Invoked exactly once per lease when it is released, after the node's in-flight count got
+   * decremented.
+   */
+  protected void onRelease(final Node node, final long elapsedNanos) {}
+
+  /**
+   * Select a node from the given non-empty snapshot.
+   */
+  protected abstract Node select(NodeSnapshot snapshot);
+
+  /**
+   * Select a node for a well-mixed 64-bit key hash from the given non-empty snapshot. Strategies
+   * without key affinity ignore the key.
+   */
+  protected Node select(final NodeSnapshot snapshot, final long keyHash) {
+    return select(snapshot);
+  }
+
+  /**
+   * Select a node not in the given non-empty exclusion from the given non-empty snapshot. The
+   * default redraws {@link #select(NodeSnapshot)} a bounded number of times and then scans from a
+   * random offset; strategies should override this to skip excluded nodes natively.
+   * 
+   * @return null if every node is excluded
+   */
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    for (int attempt = 0; attempt < MAX_EXCLUDED_ATTEMPTS; attempt++) {
+      final Node node = select(snapshot);
+      if (node != null && !exclusion.contains(node)) {
+        return node;
+      }
+    }
+    return firstNotExcluded(snapshot, exclusion,
+        ThreadLocalRandom.current().nextInt(snapshot.size()));
+  }
+
+  /**
+   * Select a node for a key hash that is not in the given non-empty exclusion. The default falls
+   * back from an excluded owner to a scan from a key-derived offset, so retries of the same key
+   * consistently land on the same spare node.
+   * 
+   * @return null if every node is excluded
+   */
+  protected Node select(final NodeSnapshot snapshot, final long keyHash,
+      final Exclusion exclusion) {
+    final Node node = select(snapshot, keyHash);
+    if (node != null && !exclusion.contains(node)) {
+      return node;
+    }
+    return firstNotExcluded(snapshot, exclusion,
+        (int) Long.remainderUnsigned(Hashing.mix64(keyHash), snapshot.size()));
+  }
+
+  /**
+   * Select the two best distinct candidates not in the given exclusion from the given non-empty
+   * snapshot, e.g. a primary and its hedge. The default selects twice, excluding the first pick
+   * from the second; strategies comparing candidates should override this to find both in a
+   * single pass.
+   * 
+   * @return the number of nodes selected, fewer than 2 if not enough nodes are left
+   */
+  protected int selectHedged(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out) {
+    final Node first = exclusion.isEmpty() ? select(snapshot) : select(snapshot, exclusion);
+    if (first == null) {
+      return 0;
+    }
+    out[0] = first;
+    exclusion.add(first);
+    try {
+      final Node second = select(snapshot, exclusion);
+      if (second == null) {
+        return 1;
+      }
+      out[1] = second;
+      return 2;
+    } finally {
+      exclusion.removeLast();
+    }
+  }
+
+  /**
+   * @return the first node not excluded scanning from offset, null if every node is excluded
+   */
+  static Node firstNotExcluded(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final int offset) {
+    final int[] handles = snapshot.handles();
+    int index = offset;
+    for (int iter = 0; iter < handles.length; iter++) {
+      if (!exclusion.containsHandle(handles[index])) {
+        return snapshot.get(index);
+      }
+      if (++index == handles.length) {
+        index = 0;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Select count nodes, possibly repeating, from the given non-empty snapshot into out. Strategies
+   * should override this to amortize per-selection work across the batch.
+   * 
+   * @return the number of nodes selected
+   */
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = select(snapshot);
+    }
+    return count;
+  }
+
+  /**
+   * Select up to count distinct nodes from the given non-empty snapshot into out. The default
+   * draws from {@link #select(NodeSnapshot)}, skipping repeats for a bounded number of attempts,
+   * and tops up with unselected nodes scanned from a random offset.
+   * 
+   * @return the number of nodes selected
+   */
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final int target = Math.min(count, snapshot.size());
+    int selected = 0;
+    for (int attempt = 0; selected < target && attempt < target * 4; attempt++) {
+      final Node node = select(snapshot);
+      if (node != null && !contains(out, selected, node)) {
+        out[selected++] = node;
+      }
+    }
+    return fillDistinct(snapshot.nodes(), out, selected, target);
+  }
+
+  /**
+   * Top up out with nodes not yet in it, scanning from a random offset.
+   * 
+   * @return the number of nodes in out
+   */
+  static int fillDistinct(final Node[] nodes, final Node[] out, int selected, final int target) {
+    if (selected >= target) {
+      return selected;
+    }
+    final int offset = ThreadLocalRandom.current().nextInt(nodes.length);
+    for (int iter = 0; iter < nodes.length && selected < target; iter++) {
+      final Node node = nodes[(offset + iter) % nodes.length];
+      if (!contains(out, selected, node)) {
+        out[selected++] = node;
+      }
+    }
+    return selected;
+  }
+
+  static boolean contains(final Node[] nodes, final int size, final Node node) {
+    for (int iter = 0; iter < size; iter++) {
+      if (nodes[iter] == node) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Bring a delegate's membership in line with the given nodes, e.g. for composite strategies.
+   */
+  static void reconcile(final LoadBalancer delegate, final List<Node> nodes) {
+    final Set<Node> missing = new HashSet<>(nodes);
+    for (final Node node : delegate.listNodes()) {
+      if (!missing.remove(node)) {
+        delegate.removeNode(node);
+      }
+    }
+    if (!missing.isEmpty()) {
+      final List<Node> added = new ArrayList<>(missing.size());
+      for (final Node node : nodes) {
+        if (missing.contains(node)) {
+          added.add(node);
+        }
+      }
+      delegate.addNodes(added);
+    }
+  }
+
+  /**
+   * Invoked on the mutating thread after a membership change got published, so that derived
+   * selection tables can be rebuilt off the selection path.
+   */
+  protected void onMembershipChange(final NodeSnapshot snapshot) {}
+
+  /**
+   * Invoked on the scheduler thread after the weights of members changed, so that weight-derived
+   * selection tables can be rebuilt off the selection path. A burst of weight changes, e.g. a
+   * whole fleet being re-weighted, is coalesced into a single rebuild, and selections keep using
+   * the previous weights until it is published.
+   */
+  protected void onWeightChange(final NodeSnapshot snapshot) {}
+
+  /**
+   * Prepare a newly published snapshot for selections and rebuild derived tables, on the mutating
+   * thread.
+   */
+  private void published() {
+    final NodeSnapshot snapshot = registry.snapshot();
+    if (slowStart != null) {
+      snapshot.indexHandles();
+    }
+    onMembershipChange(snapshot);
+    selectionListener.onMembershipChange(snapshot);
+  }
+
+  private void weightsChanged() {
+    // one rebuild at a time, later weight changes are picked up by the pending one
+    if (weightRebuildPending.compareAndSet(false, true)) {
+      Scheduler.schedule(this::rebuildWeights, 0L);
+    }
+  }
+
+  // runs on the scheduler thread
+  private void rebuildWeights() {
+    // cleared first so that a weight change during the rebuild schedules another one
+    weightRebuildPending.set(false);
+    onWeightChange(registry.snapshot());
+  }
+
+  @Override
+  public void setSelectionListener(final SelectionListener listener) {
+    if (listener == null) {
+      throw new IllegalArgumentException("Cannot use a null selection listener");
+    }
+    selectionListener = listener;
+  }
+
+  @Override
+  public void setOutlierDetector(final OutlierDetector detector) {
+    outlierDetector = detector;
+    boolean readmitted = false;
+    for (final Node node : registry.snapshot().getMembers()) {
+      if (detector != null) {
+        detector.track(node);
+      }
+      readmitted |= registry.readmitNode(node);
+    }
+    if (readmitted) {
+      published();
+      logger.info("Readmitted all ejected nodes");
+    }
+  }
+
+  @Override
+  public OutlierDetector getOutlierDetector() {
+    return outlierDetector;
+  }
+
+  @Override
+  public void setSlowStart(final SlowStart slowStart) {
+    this.slowStart = slowStart;
+    if (slowStart != null) {
+      registry.snapshot().indexHandles();
+    }
+  }
+
+  @Override
+  public SlowStart getSlowStart() {
+    return slowStart;
+  }
+
+  @Override
+  public void setConcurrencyLimit(final AdaptiveConcurrencyLimit limit) {
+    concurrencyLimit = limit;
+    for (final Node node : registry.snapshot().getMembers()) {
+      if (limit == null) {
+        node.setConcurrencyLimit(0);
+      } else {
+        limit.init(node);
+      }
+    }
+    wakeWaiters();
+  }
+
+  @Override
+  public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  protected SelectionListener getSelectionListener() {
+    return selectionListener;
+  }
+
+  @Override
+  public LoadBalancerStats getStats() {
+    final SelectionListener listener = selectionListener;
+    if (listener instanceof SelectionMetrics) {
+      return ((SelectionMetrics) listener).snapshot();
+    }
+    return LoadBalancerStats.EMPTY;
+  }
+
+  @Override
+  public List<Node> listNodes() {
+    return registry.listNodes();
+  }
+
+  @Override
+  public Node getNode(final String id) {
+    return registry.snapshot().getMember(id);
+  }
+
+  @Override
+  public boolean addNode(final Node node) {
+    final boolean added = registry.addNode(node);
+    if (added) {
+      final AdaptiveConcurrencyLimit limit = concurrencyLimit;
+      if (limit != null) {
+        limit.init(node);
+      }
+      final OutlierDetector detector = outlierDetector;
+      if (detector != null) {
+        detector.track(node);
+      }
+      published();
+      logger.info("Added " + node);
+      wakeWaiters();
+    }
+    return added;
+  }
+
+  @Override
+  public int addNodes(final Collection<? extends Node> nodes) {
+    final Node[] added = registry.add(nodes);
+    if (added.length > 0) {
+      // only the nodes actually added, members keep their adapted limits
+      final AdaptiveConcurrencyLimit limit = concurrencyLimit;
+      if (limit != null) {
+        for (final Node node : added) {
+          limit.init(node);
+        }
+      }
+      final OutlierDetector detector = outlierDetector;
+      if (detector != null) {
+        for (final Node node : added) {
+          detector.track(node);
+        }
+      }
+      published();
+      logger.info("Added " + added.length + " nodes");
+      wakeWaiters();
+    }
+    return added.length;
+  }
+
+  @Override
+  public boolean removeNode(final Node node) {
+    final boolean removed = registry.removeNode(node);
+    if (removed) {
+      final OutlierDetector detector = outlierDetector;
+      if (detector != null) {
+        detector.forget(node);
+      }
+      published();
+      logger.info("Removed " + node);
+    }
+    return removed;
+  }
+
+  private static final class Waiter<T> {
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private final Function<AbstractLoadBalancer, T> acquirer;
+
+    private Waiter(final Function<AbstractLoadBalancer, T> acquirer) {
+      this.acquirer = acquirer;
+    }
+
+    /**
+     * @return false if nothing could be acquired for this waiter
+     */
+    private boolean tryComplete(final AbstractLoadBalancer owner) {
+      final T result = acquirer.apply(owner);
+      if (result == null) {
+        return false;
+      }
+      // a concurrent wake-up or cancellation got here first, give the lease back unused
+      if ((!owner.waiters.remove(this) || !future.complete(result)) && result instanceof Lease) {
+        ((Lease) result).abandon();
+      }
+      return true;
+    }
+  }
+
+}
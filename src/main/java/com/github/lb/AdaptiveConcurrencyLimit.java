@@ -0,0 +1,132 @@
+package com.github.lb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the per-node concurrency limits of one load balancer to observed latency with an additive
+ * increase, multiplicative decrease (AIMD) controller, see
+ * {@link LoadBalancer#setConcurrencyLimit(AdaptiveConcurrencyLimit)}. On every reported response
+ * the node's limit becomes
+ *
+ * <pre>
+ * max(minLimit, floor(limit * backoffRatio))   if the request failed or took over latencyThreshold
+ * min(maxLimit, limit + 1)                     if the node used at least half of its limit
+ * limit                                        otherwise
+ * </pre>
+ *
+ * so an overloaded node sheds concurrency quickly while a healthy, busy node probes for more
+ * capacity one request at a time. Limits live in the {@link NodeTable} column and are updated by
+ * CAS, so concurrent responses never lock. Nodes start at initialLimit unless their current limit
+ * is already within bounds.
+ *
+ * @author gaurav
+ */
+public final class AdaptiveConcurrencyLimit {
+  public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+  private final int initialLimit;
+  private final int minLimit;
+  private final int maxLimit;
+  private final long latencyThresholdNanos;
+  private final double backoffRatio;
+
+  public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit,
+      final long latencyThreshold, final TimeUnit unit) {
+    this(initialLimit, minLimit, maxLimit, latencyThreshold, unit, DEFAULT_BACKOFF_RATIO);
+  }
+
+  public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit,
+      final long latencyThreshold, final TimeUnit unit, final double backoffRatio) {
+    if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+        || initialLimit > maxLimit) {
+      throw new IllegalArgumentException(
+          "Cannot use limits outside 1 <= minLimit <= initialLimit <= maxLimit");
+    }
+    if (unit == null) {
+      throw new IllegalArgumentException("Cannot use a null time unit");
+    }
+    if (latencyThreshold <= 0L) {
+      throw new IllegalArgumentException("Cannot use a latencyThreshold <= 0");
+    }
+    if (!(backoffRatio > 0.0 && backoffRatio < 1.0)) {
+      throw new IllegalArgumentException("Cannot use a backoffRatio outside (0, 1)");
+    }
+    this.initialLimit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+    this.backoffRatio = backoffRatio;
+  }
+
+  /**
+   * Start the node at initialLimit, unless it already carries a limit within bounds, e.g. one
+   * adapted under a previous strategy.
+   */
+  void init(final Node node) {
+    final int current = NodeTable.limit(node.getHandle());
+    if (current < minLimit || current > maxLimit) {
+      NodeTable.setLimit(node.getHandle(), initialLimit);
+    }
+  }
+
+  /**
+   * Adjust the node's limit for one observed response.
+   *
+   * @return the updated limit
+   */
+  int onResponse(final Node node, final long latencyNanos, final boolean success) {
+    final int handle = node.getHandle();
+    final boolean overloaded = !success || latencyNanos > latencyThresholdNanos;
+    while (true) {
+      final int current = NodeTable.limit(handle);
+      if (current == 0) {
+        // the limit got lifted meanwhile
+        return 0;
+      }
+      final int updated;
+      if (overloaded) {
+        updated = Math.max(minLimit, (int) (current * backoffRatio));
+      } else if (NodeTable.inFlight(handle) * 2 >= current) {
+        updated = Math.min(maxLimit, current + 1);
+      } else {
+        return current;
+      }
+      if (updated == current || NodeTable.compareAndSetLimit(handle, current, updated)) {
+        return updated;
+      }
+    }
+  }
+
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  public long getLatencyThresholdNanos() {
+    return latencyThresholdNanos;
+  }
+
+  public double getBackoffRatio() {
+    return backoffRatio;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("AdaptiveConcurrencyLimit[initialLimit:").append(initialLimit);
+    builder.append(", minLimit:").append(minLimit);
+    builder.append(", maxLimit:").append(maxLimit);
+    builder.append(", latencyThresholdNanos:").append(latencyThresholdNanos);
+    builder.append(", backoffRatio:").append(backoffRatio);
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
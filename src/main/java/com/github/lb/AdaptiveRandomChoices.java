@@ -0,0 +1,128 @@
+package com.github.lb;
+
+/**
+ * Adapts the number of random choices R of one {@link RRandomChoicesOfNNodesLB} to the spread of
+ * node loads, see {@link RRandomChoicesOfNNodesLB#setAdaptiveChoices(AdaptiveRandomChoices)}. About
+ * every retuneInterval selections, one selecting thread samples up to sampleSize node loads and
+ * moves R by one step within [minChoices, min(maxChoices, N)]:
+ *
+ * <pre>
+ * R - 1   if the coefficient of variation of the loads is below lowDispersion
+ *         or the imbalance (max / mean load) got worse since the last raise of R
+ * R + 1   if the coefficient of variation of the loads is above highDispersion
+ * R       otherwise
+ * </pre>
+ *
+ * so a skewed fleet gets compared more candidates per selection, while a balanced one is served
+ * with the fewest. The imbalance check tracks the quality of recent selections: if more choices
+ * made the fleet less balanced, selections are herding onto the same lightly loaded nodes (e.g.
+ * behind stale load reports) and R backs off. Stale loads are left out of the sample. Retuning
+ * happens on the selection path but needs no lock, and the other threads keep selecting with the
+ * current R meanwhile.
+ *
+ * @author gaurav
+ */
+public final class AdaptiveRandomChoices {
+  public static final double DEFAULT_LOW_DISPERSION = 0.1;
+  public static final double DEFAULT_HIGH_DISPERSION = 0.5;
+  public static final int DEFAULT_RETUNE_INTERVAL = 1024;
+  public static final int DEFAULT_SAMPLE_SIZE = 64;
+
+  private final int minChoices;
+  private final int maxChoices;
+  private final double lowDispersion;
+  private final double highDispersion;
+  private final int retuneInterval;
+  private final int sampleSize;
+
+  public AdaptiveRandomChoices(final int minChoices, final int maxChoices) {
+    this(minChoices, maxChoices, DEFAULT_LOW_DISPERSION, DEFAULT_HIGH_DISPERSION,
+        DEFAULT_RETUNE_INTERVAL, DEFAULT_SAMPLE_SIZE);
+  }
+
+  public AdaptiveRandomChoices(final int minChoices, final int maxChoices,
+      final double lowDispersion, final double highDispersion, final int retuneInterval,
+      final int sampleSize) {
+    if (minChoices < 1 || maxChoices < minChoices) {
+      throw new IllegalArgumentException(
+          "Cannot use choices outside 1 <= minChoices <= maxChoices");
+    }
+    if (!(lowDispersion >= 0.0 && highDispersion > lowDispersion)) {
+      throw new IllegalArgumentException(
+          "Cannot use dispersions outside 0 <= lowDispersion < highDispersion");
+    }
+    if (retuneInterval < 1) {
+      throw new IllegalArgumentException("Cannot use a retuneInterval < 1");
+    }
+    if (sampleSize < 2) {
+      throw new IllegalArgumentException("Cannot use a sampleSize < 2");
+    }
+    this.minChoices = minChoices;
+    this.maxChoices = maxChoices;
+    this.lowDispersion = lowDispersion;
+    this.highDispersion = highDispersion;
+    this.retuneInterval = retuneInterval;
+    this.sampleSize = sampleSize;
+  }
+
+  /**
+   * @return choices clamped to [minChoices, maxChoices] and to the number of nodes
+   */
+  int clamp(final int choices, final int nodes) {
+    final int upper = Math.max(1, Math.min(maxChoices, nodes));
+    return Math.min(upper, Math.max(minChoices, choices));
+  }
+
+  /**
+   * @return the step of R for the sampled load dispersion and imbalance, given the last step and
+   *         the imbalance it was taken at
+   */
+  int step(final double dispersion, final double imbalance, final int lastStep,
+      final double lastImbalance) {
+    if (lastStep > 0 && imbalance > lastImbalance) {
+      return -1;
+    }
+    if (dispersion < lowDispersion) {
+      return -1;
+    }
+    return dispersion > highDispersion ? 1 : 0;
+  }
+
+  public int getMinChoices() {
+    return minChoices;
+  }
+
+  public int getMaxChoices() {
+    return maxChoices;
+  }
+
+  public double getLowDispersion() {
+    return lowDispersion;
+  }
+
+  public double getHighDispersion() {
+    return highDispersion;
+  }
+
+  public int getRetuneInterval() {
+    return retuneInterval;
+  }
+
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("AdaptiveRandomChoices[minChoices:").append(minChoices);
+    builder.append(", maxChoices:").append(maxChoices);
+    builder.append(", lowDispersion:").append(lowDispersion);
+    builder.append(", highDispersion:").append(highDispersion);
+    builder.append(", retuneInterval:").append(retuneInterval);
+    builder.append(", sampleSize:").append(sampleSize);
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
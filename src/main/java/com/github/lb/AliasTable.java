@@ -0,0 +1,113 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A Walker/Vose alias table over a node snapshot, allowing O(1) picks in proportion to node
+ * weights: one uniform draw selects a column, and its fractional part decides between the column's
+ * own node and its alias. If all weights are zero, nodes are treated as equally weighted. Picks are
+ * indexes into the snapshot the table was built from.
+ * 
+ * @author gaurav
+ */
+final class AliasTable {
+  private final NodeSnapshot snapshot;
+  private final double[] probabilities;
+  private final int[] aliases;
+  // nodes that can be picked at all: every node if all weights are zero
+  private final boolean[] eligible;
+  private int eligibleCount;
+
+  AliasTable(final NodeSnapshot snapshot) {
+    this.snapshot = snapshot;
+    final int[] handles = snapshot.handles();
+    final int size = handles.length;
+    probabilities = new double[size];
+    aliases = new int[size];
+    eligible = new boolean[size];
+    if (size == 0) {
+      return;
+    }
+
+    // read every weight once straight from the NodeTable column
+    final int[] weights = new int[size];
+    long totalWeight = 0L;
+    for (int iter = 0; iter < size; iter++) {
+      weights[iter] = NodeTable.weight(handles[iter]);
+      totalWeight += weights[iter];
+    }
+
+    // scale weights so that the average column holds exactly 1.0
+    final double[] scaled = new double[size];
+    for (int iter = 0; iter < size; iter++) {
+      scaled[iter] = totalWeight == 0L ? 1.0
+          : (double) weights[iter] * size / totalWeight;
+      eligible[iter] = scaled[iter] > 0.0;
+      if (eligible[iter]) {
+        eligibleCount++;
+      }
+    }
+
+    final int[] small = new int[size];
+    final int[] large = new int[size];
+    int smallCount = 0, largeCount = 0;
+    for (int iter = 0; iter < size; iter++) {
+      if (scaled[iter] < 1.0) {
+        small[smallCount++] = iter;
+      } else {
+        large[largeCount++] = iter;
+      }
+    }
+
+    // pair each under-full column with an over-full one that tops it up
+    while (smallCount > 0 && largeCount > 0) {
+      final int less = small[--smallCount];
+      final int more = large[--largeCount];
+      probabilities[less] = scaled[less];
+      aliases[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+      if (scaled[more] < 1.0) {
+        small[smallCount++] = more;
+      } else {
+        large[largeCount++] = more;
+      }
+    }
+    // whatever is left is full up to floating point error
+    while (largeCount > 0) {
+      final int more = large[--largeCount];
+      probabilities[more] = 1.0;
+      aliases[more] = more;
+    }
+    while (smallCount > 0) {
+      final int less = small[--smallCount];
+      probabilities[less] = 1.0;
+      aliases[less] = less;
+    }
+  }
+
+  /**
+   * @return the index of a node in the snapshot this table was built from
+   */
+  int pick(final ThreadLocalRandom random) {
+    final double draw = random.nextDouble() * probabilities.length;
+    final int column = Math.min((int) draw, probabilities.length - 1);
+    return draw - column < probabilities[column] ? column : aliases[column];
+  }
+
+  boolean isEligible(final int index) {
+    return eligible[index];
+  }
+
+  int getEligible() {
+    return eligibleCount;
+  }
+
+  int size() {
+    return probabilities.length;
+  }
+
+  NodeSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+}
@@ -0,0 +1,136 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consistent hashing with bounded loads: keys keep their affinity to the owner found on the
+ * {@link HashRing}, but no node may hold more than
+ * 
+ * <pre>
+ * ceil((1 + epsilon) * (inFlight + 1) / nodes)
+ * </pre>
+ * 
+ * of this balancer's in-flight requests. A key whose owner is at capacity walks the ring clockwise
+ * to the next node under the cap, so a hot key spills over onto a stable sequence of neighbors
+ * instead of melting its owner down. Smaller epsilon balances more tightly at the cost of more
+ * keys moving away from their owners.
+ * 
+ * In-flight counts come from {@link Lease}s and are maintained with atomic counters only. The cap
+ * is checked before the lease is taken, so concurrent leases may overshoot it slightly.
+ * 
+ * @author gaurav
+ */
+public class BoundedLoadConsistentHashLB extends ConsistentHashLB {
+  public static final double DEFAULT_EPSILON = 0.25;
+
+  private final AtomicLong inFlight = new AtomicLong();
+  private volatile double epsilon;
+
+  public BoundedLoadConsistentHashLB() {
+    this(DEFAULT_VIRTUAL_NODES, DEFAULT_EPSILON);
+  }
+
+  public BoundedLoadConsistentHashLB(final int virtualNodes, final double epsilon) {
+    super(virtualNodes);
+    validateEpsilon(epsilon);
+    this.epsilon = epsilon;
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash) {
+    final HashRing ring = ring();
+    if (ring.isEmpty()) {
+      return super.select(snapshot, keyHash);
+    }
+    final Node[] nodes = ring.getSnapshot().nodes();
+    final long capacity = capacity(nodes.length);
+    final int first = ring.pointIndex(keyHash);
+    for (int iter = 0, point = first; iter < ring.size(); iter++) {
+      final Node node = nodes[ring.ownerAt(point)];
+      if (node.getInFlight() < capacity) {
+        return node;
+      }
+      if (++point == ring.size()) {
+        point = 0;
+      }
+    }
+    // only reachable if nodes are also loaded through other balancers, stick to the owner
+    return nodes[ring.ownerAt(first)];
+  }
+
+  /**
+   * Walks the ring past excluded nodes as well as nodes at capacity.
+   */
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash,
+      final Exclusion exclusion) {
+    final HashRing ring = ring();
+    if (ring.isEmpty()) {
+      return super.select(snapshot, keyHash, exclusion);
+    }
+    final int first = ring.pointIndex(keyHash);
+    final Node node = walk(ring, first, capacity(ring.getSnapshot().size()), exclusion);
+    return node != null ? node : walk(ring, first, Long.MAX_VALUE, exclusion);
+  }
+
+  /**
+   * Prefers distinct nodes under the cap in ring order, then tops up with nodes at capacity.
+   */
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final HashRing ring = ring();
+    if (ring.isEmpty()) {
+      return super.selectDistinct(snapshot, count, out);
+    }
+    final int size = ring.getSnapshot().size();
+    final int target = Math.min(count, size);
+    final int first = ring.pointIndex(ThreadLocalRandom.current().nextLong());
+    final int selected = walkDistinct(ring, first, capacity(size), out, 0, target);
+    return walkDistinct(ring, first, Long.MAX_VALUE, out, selected, target);
+  }
+
+  /**
+   * @return the maximum in-flight requests any single node may hold when placing one more request
+   */
+  public long capacity(final int nodes) {
+    return (long) Math.ceil((1.0 + epsilon) * (inFlight.get() + 1) / nodes);
+  }
+
+  public void setEpsilon(final double epsilon) {
+    validateEpsilon(epsilon);
+    this.epsilon = epsilon;
+  }
+
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  public long getInFlight() {
+    return inFlight.get();
+  }
+
+  @Override
+  protected void onAcquire(final Node node) {
+    super.onAcquire(node);
+    inFlight.incrementAndGet();
+  }
+
+  @Override
+  protected void onRelease(final Node node, final long elapsedNanos) {
+    super.onRelease(node, elapsedNanos);
+    inFlight.decrementAndGet();
+  }
+
+  private static void validateEpsilon(final double epsilon) {
+    if (!(epsilon >= 0.0)) {
+      throw new IllegalArgumentException("Cannot use an epsilon < 0");
+    }
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.BOUNDED_LOAD_CONSISTENT_HASH;
+  }
+
+}
@@ -0,0 +1,207 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A ketama-style consistent-hash load balancer for key affinity: a key is routed to the owner of
+ * the first virtual node at or after the key's hash on a {@link HashRing}. The ring holds about
+ * virtualNodes points per node, split in proportion to the weights, so keys spread in proportion
+ * to weights, and a membership change only moves the keys owned by the node that was added or
+ * removed.
+ * 
+ * The ring is rebuilt incrementally on the mutating thread on addNode/removeNode, and from scratch
+ * once per burst of weight changes of members, on the scheduler thread; selections only read the
+ * published ring and never lock or build. Until the ring of the first nodes is published, keys are
+ * spread over the snapshot by hash instead. Key-less selections pick a random point on the ring.
+ * 
+ * @author gaurav
+ */
+public class ConsistentHashLB extends AbstractLoadBalancer {
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  private final Object ringLock = new Object();
+  private final int virtualNodes;
+  private volatile HashRing ring;
+
+  public ConsistentHashLB() {
+    this(DEFAULT_VIRTUAL_NODES);
+  }
+
+  public ConsistentHashLB(final int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("Cannot use virtualNodes < 1");
+    }
+    this.virtualNodes = virtualNodes;
+    this.ring = HashRing.build(NodeSnapshot.EMPTY, registry.getWeightGeneration(), virtualNodes);
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    return select(snapshot, ThreadLocalRandom.current().nextLong());
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash) {
+    final HashRing ring = this.ring;
+    if (ring.isEmpty()) {
+      // only while the first nodes are being published
+      return snapshot.get((int) Long.remainderUnsigned(keyHash, snapshot.size()));
+    }
+    return ring.getSnapshot().get(ring.ownerIndex(keyHash));
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    return select(snapshot, ThreadLocalRandom.current().nextLong(), exclusion);
+  }
+
+  /**
+   * Walks the ring clockwise from the key's point to the first owner not excluded, so a retried key
+   * moves on to the same neighbor a replica set would.
+   */
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash,
+      final Exclusion exclusion) {
+    final HashRing ring = this.ring;
+    if (ring.isEmpty()) {
+      return super.select(snapshot, keyHash, exclusion);
+    }
+    return walk(ring, ring.pointIndex(keyHash), Long.MAX_VALUE, exclusion);
+  }
+
+  /**
+   * @return the first owner not excluded and with fewer than capacity in-flight requests walking
+   *         the ring clockwise from the given point, null if there is none
+   */
+  static Node walk(final HashRing ring, final int first, final long capacity,
+      final Exclusion exclusion) {
+    final Node[] nodes = ring.getSnapshot().nodes();
+    for (int iter = 0, point = first; iter < ring.size(); iter++) {
+      final Node node = nodes[ring.ownerAt(point)];
+      if (node.getInFlight() < capacity && !exclusion.contains(node)) {
+        return node;
+      }
+      if (++point == ring.size()) {
+        point = 0;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final HashRing ring = this.ring;
+    if (ring.isEmpty()) {
+      return super.select(snapshot, count, out);
+    }
+    final Node[] nodes = ring.getSnapshot().nodes();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = nodes[ring.ownerIndex(random.nextLong())];
+    }
+    return count;
+  }
+
+  /**
+   * Walks the ring clockwise from a random point, so the batch is the key-less analogue of a
+   * replica set.
+   */
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final HashRing ring = this.ring;
+    if (ring.isEmpty()) {
+      return super.selectDistinct(snapshot, count, out);
+    }
+    final int target = Math.min(count, ring.getSnapshot().size());
+    final int first = ring.pointIndex(ThreadLocalRandom.current().nextLong());
+    return walkDistinct(ring, first, Long.MAX_VALUE, out, 0, target);
+  }
+
+  /**
+   * Collect distinct owners with fewer than capacity in-flight requests, walking the ring clockwise
+   * from the given point until out holds target nodes or the ring is exhausted.
+   * 
+   * @return the number of nodes in out
+   */
+  static int walkDistinct(final HashRing ring, final int first, final long capacity,
+      final Node[] out, int selected, final int target) {
+    final Node[] nodes = ring.getSnapshot().nodes();
+    for (int iter = 0, point = first; iter < ring.size() && selected < target; iter++) {
+      final Node node = nodes[ring.ownerAt(point)];
+      if (node.getInFlight() < capacity && !contains(out, selected, node)) {
+        out[selected++] = node;
+      }
+      if (++point == ring.size()) {
+        point = 0;
+      }
+    }
+    return selected;
+  }
+
+  @Override
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    refreshRing();
+  }
+
+  @Override
+  protected void onWeightChange(final NodeSnapshot snapshot) {
+    refreshRing();
+  }
+
+  public int getVirtualNodes() {
+    return virtualNodes;
+  }
+
+  /**
+   * @return the published ring, which may lag the latest snapshot while a change is being
+   *         published, and is empty until the ring of the first nodes is
+   */
+  HashRing ring() {
+    return ring;
+  }
+
+  /**
+   * Bring the ring up to date with the latest snapshot, incrementally where possible.
+   */
+  private void refreshRing() {
+    synchronized (ringLock) {
+      final NodeSnapshot latest = registry.snapshot();
+      final long weightGeneration = registry.getWeightGeneration();
+      final HashRing current = ring;
+      if (current.getSnapshot() == latest && current.getWeightGeneration() == weightGeneration) {
+        return;
+      }
+      final NodeSnapshot previous = current.getSnapshot();
+      HashRing next = null;
+      if (current.getWeightGeneration() == weightGeneration
+          && latest.getVersion() == previous.getVersion() + 1) {
+        // a single published change: either one appended node or one removed node
+        // null where the derived ring would be out of balance
+        if (latest.size() == previous.size() + 1) {
+          next = current.withAppended(latest);
+        } else if (latest.size() == previous.size() - 1) {
+          next = current.withRemoved(latest, removedIndex(previous, latest));
+        }
+      }
+      if (next == null) {
+        next = HashRing.build(latest, weightGeneration, virtualNodes);
+      }
+      ring = next;
+    }
+  }
+
+  private static int removedIndex(final NodeSnapshot previous, final NodeSnapshot latest) {
+    for (int iter = 0; iter < latest.size(); iter++) {
+      if (previous.get(iter) != latest.get(iter)) {
+        return iter;
+      }
+    }
+    return previous.size() - 1;
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.CONSISTENT_HASH;
+  }
+
+}
@@ -0,0 +1,90 @@
+package com.github.lb;
+
+import java.util.Arrays;
+
+/**
+ * The attempt context of one request: the nodes it already tried, e.g. the node that just failed
+ * before a retry or the primary of a hedged request, which
+ * {@link LoadBalancer#selectNode(Exclusion)} and
+ * {@link LoadBalancer#selectHedged(Exclusion, Node[])} then pass over. Nodes are kept as their
+ * {@link NodeTable} handles in a small int array with linear lookups, which beats any set for the
+ * handful of attempts a request makes. An exclusion is meant to be reused across requests (e.g.
+ * one per thread) with {@link #clear()}, so that retries never allocate. Not thread-safe.
+ *
+ * @author gaurav
+ */
+public final class Exclusion {
+  private int[] handles;
+  private int size;
+
+  public Exclusion() {
+    this(4);
+  }
+
+  public Exclusion(final int expectedAttempts) {
+    if (expectedAttempts < 1) {
+      throw new IllegalArgumentException("Cannot use expectedAttempts < 1");
+    }
+    handles = new int[expectedAttempts];
+  }
+
+  /**
+   * @return true if the node was not excluded yet
+   */
+  public boolean add(final Node node) {
+    if (node == null) {
+      throw new IllegalArgumentException("Cannot exclude a null node");
+    }
+    final int handle = node.getHandle();
+    if (containsHandle(handle)) {
+      return false;
+    }
+    if (size == handles.length) {
+      handles = Arrays.copyOf(handles, size * 2);
+    }
+    handles[size++] = handle;
+    return true;
+  }
+
+  public boolean contains(final Node node) {
+    return node != null && containsHandle(node.getHandle());
+  }
+
+  boolean containsHandle(final int handle) {
+    for (int iter = 0; iter < size; iter++) {
+      if (handles[iter] == handle) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // drops the most recently added node, for scratch use within a single selection
+  void removeLast() {
+    size--;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Forget all excluded nodes so that this exclusion can be reused for the next request.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("Exclusion[size:").append(size);
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
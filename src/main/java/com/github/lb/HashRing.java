@@ -0,0 +1,208 @@
+package com.github.lb;
+
+import java.util.Arrays;
+
+/**
+ * An immutable ketama-style consistent-hash ring over a node snapshot. The ring is stored as a
+ * sorted long[] of virtual node hashes plus a parallel int[] of owning node indexes into the
+ * snapshot, and looked up by binary search. Weights are normalized: the ring holds about
+ * virtualNodes points per node (at most MAX_POINTS in all), split in proportion to the weights with
+ * at least one point per node (a weight of 0 counts as 1), so large weights cost no more points
+ * than small ones.
+ * 
+ * Adding or removing a single node derives the new ring from the old one in a single merge/filter
+ * pass instead of re-hashing and re-sorting every point. The derived ring keeps the points per unit
+ * of weight of the old one, so no other node's points move; once that drifts more than twofold from
+ * virtualNodes per node, the ring has to be built from scratch instead.
+ * 
+ * @author gaurav
+ */
+final class HashRing {
+  // 100k nodes at the default 160 virtual nodes still fit
+  static final int MAX_POINTS = 1 << 24;
+
+  private final NodeSnapshot snapshot;
+  private final long weightGeneration;
+  private final int virtualNodes;
+  // points per unit of weight
+  private final double scale;
+  private final long[] hashes;
+  private final int[] owners;
+
+  private HashRing(final NodeSnapshot snapshot, final long weightGeneration,
+      final int virtualNodes, final double scale, final long[] hashes, final int[] owners) {
+    this.snapshot = snapshot;
+    this.weightGeneration = weightGeneration;
+    this.virtualNodes = virtualNodes;
+    this.scale = scale;
+    this.hashes = hashes;
+    this.owners = owners;
+  }
+
+  static HashRing build(final NodeSnapshot snapshot, final long weightGeneration,
+      final int virtualNodes) {
+    final Node[] nodes = snapshot.nodes();
+    long weights = 0L;
+    for (final Node node : nodes) {
+      weights += weight(node);
+    }
+    final double scale =
+        weights == 0L ? virtualNodes : (double) budget(virtualNodes, nodes.length) / weights;
+    int points = 0;
+    for (final Node node : nodes) {
+      // each at most the budget, and the budget plus one point per node in all
+      points += (int) points(node, scale);
+    }
+    final long[] hashes = new long[points];
+    final int[] owners = new int[points];
+    int offset = 0;
+    for (int iter = 0; iter < nodes.length; iter++) {
+      offset = fill(nodes[iter], iter, scale, hashes, owners, offset);
+    }
+    Hashing.sortParallel(hashes, owners, 0, points);
+    return new HashRing(snapshot, weightGeneration, virtualNodes, scale, hashes, owners);
+  }
+
+  /**
+   * Derive the ring for newSnapshot which has exactly one node appended to this ring's snapshot.
+   *
+   * @return null if the derived ring would be out of balance and needs to be built from scratch
+   */
+  HashRing withAppended(final NodeSnapshot newSnapshot) {
+    final int addedIndex = newSnapshot.size() - 1;
+    final Node added = newSnapshot.get(addedIndex);
+    if (!isBalanced(hashes.length + points(added, scale), newSnapshot.size())) {
+      return null;
+    }
+    final int addedPoints = (int) points(added, scale);
+    final long[] addedHashes = new long[addedPoints];
+    final int[] addedOwners = new int[addedPoints];
+    fill(added, addedIndex, scale, addedHashes, addedOwners, 0);
+    Hashing.sortParallel(addedHashes, addedOwners, 0, addedPoints);
+
+    final long[] mergedHashes = new long[hashes.length + addedPoints];
+    final int[] mergedOwners = new int[mergedHashes.length];
+    int left = 0, right = 0, merged = 0;
+    while (left < hashes.length && right < addedPoints) {
+      if (hashes[left] <= addedHashes[right]) {
+        mergedHashes[merged] = hashes[left];
+        mergedOwners[merged++] = owners[left++];
+      } else {
+        mergedHashes[merged] = addedHashes[right];
+        mergedOwners[merged++] = addedOwners[right++];
+      }
+    }
+    while (left < hashes.length) {
+      mergedHashes[merged] = hashes[left];
+      mergedOwners[merged++] = owners[left++];
+    }
+    while (right < addedPoints) {
+      mergedHashes[merged] = addedHashes[right];
+      mergedOwners[merged++] = addedOwners[right++];
+    }
+    return new HashRing(newSnapshot, weightGeneration, virtualNodes, scale, mergedHashes,
+        mergedOwners);
+  }
+
+  /**
+   * Derive the ring for newSnapshot which has the node at removedIndex of this ring's snapshot
+   * removed.
+   *
+   * @return null if the derived ring would be out of balance and needs to be built from scratch
+   */
+  HashRing withRemoved(final NodeSnapshot newSnapshot, final int removedIndex) {
+    final int removedPoints = (int) points(snapshot.get(removedIndex), scale);
+    if (!isBalanced(hashes.length - removedPoints, newSnapshot.size())) {
+      return null;
+    }
+    final long[] keptHashes = new long[hashes.length - removedPoints];
+    final int[] keptOwners = new int[keptHashes.length];
+    int kept = 0;
+    for (int iter = 0; iter < hashes.length; iter++) {
+      final int owner = owners[iter];
+      if (owner != removedIndex) {
+        keptHashes[kept] = hashes[iter];
+        keptOwners[kept++] = owner > removedIndex ? owner - 1 : owner;
+      }
+    }
+    return new HashRing(newSnapshot, weightGeneration, virtualNodes, scale, keptHashes,
+        keptOwners);
+  }
+
+  private boolean isBalanced(final long points, final int nodes) {
+    final long budget = budget(virtualNodes, nodes);
+    return points >= budget / 2 && points <= budget * 2;
+  }
+
+  /**
+   * @return the index into {@link #getSnapshot()} of the first point at or after the hash, wrapping
+   *         around the ring
+   */
+  int ownerIndex(final long hash) {
+    return owners[pointIndex(hash)];
+  }
+
+  /**
+   * @return the index of the first point at or after the hash, wrapping around the ring
+   */
+  int pointIndex(final long hash) {
+    final int found = Arrays.binarySearch(hashes, hash);
+    final int point = found >= 0 ? found : -found - 1;
+    return point == hashes.length ? 0 : point;
+  }
+
+  int ownerAt(final int point) {
+    return owners[point];
+  }
+
+  int size() {
+    return hashes.length;
+  }
+
+  boolean isEmpty() {
+    return hashes.length == 0;
+  }
+
+  NodeSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  long getWeightGeneration() {
+    return weightGeneration;
+  }
+
+  long[] hashes() {
+    return hashes;
+  }
+
+  int[] owners() {
+    return owners;
+  }
+
+  /**
+   * @return the total points for a ring over the given number of nodes
+   */
+  static long budget(final int virtualNodes, final int nodes) {
+    return Math.min((long) virtualNodes * nodes, MAX_POINTS);
+  }
+
+  private static int weight(final Node node) {
+    return Math.max(1, node.getWeightValue());
+  }
+
+  private static long points(final Node node, final double scale) {
+    return Math.max(1L, Math.round(weight(node) * scale));
+  }
+
+  private static int fill(final Node node, final int index, final double scale,
+      final long[] hashes, final int[] owners, int offset) {
+    final long baseHash = Hashing.hash64(node.getId());
+    final int points = (int) points(node, scale);
+    for (int point = 0; point < points; point++) {
+      hashes[offset] = Hashing.derive(baseHash, point);
+      owners[offset++] = index;
+    }
+    return offset;
+  }
+
+}
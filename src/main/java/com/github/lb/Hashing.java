@@ -0,0 +1,108 @@
+package com.github.lb;
+
+/**
+ * Allocation-free 64-bit hashing for keyed selection.
+ * 
+ * @author gaurav
+ */
+final class Hashing {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private Hashing() {}
+
+  /**
+   * FNV-1a over the chars of the key, finalized with {@link #mix64(long)} for avalanche.
+   */
+  static long hash64(final CharSequence key) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int iter = 0; iter < key.length(); iter++) {
+      hash ^= key.charAt(iter);
+      hash *= FNV_PRIME;
+    }
+    return mix64(hash);
+  }
+
+  /**
+   * The murmur3 64-bit finalizer.
+   */
+  static long mix64(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * @return the hash of the ordinal-th point derived from a base hash, e.g. a virtual node
+   */
+  static long derive(final long baseHash, final int ordinal) {
+    return mix64(baseHash + (ordinal + 1) * GOLDEN_GAMMA);
+  }
+
+  /**
+   * Sort keys ascending, applying the same permutation to the parallel values.
+   */
+  static void sortParallel(final long[] keys, final int[] values, final int from, final int to) {
+    int low = from, high = to - 1;
+    while (high - low > 16) {
+      // median-of-three pivot then hoare partitioning
+      final int middle = (low + high) >>> 1;
+      if (keys[middle] < keys[low]) {
+        swap(keys, values, middle, low);
+      }
+      if (keys[high] < keys[low]) {
+        swap(keys, values, high, low);
+      }
+      if (keys[high] < keys[middle]) {
+        swap(keys, values, high, middle);
+      }
+      final long pivot = keys[middle];
+      int left = low, right = high;
+      while (left <= right) {
+        while (keys[left] < pivot) {
+          left++;
+        }
+        while (keys[right] > pivot) {
+          right--;
+        }
+        if (left <= right) {
+          swap(keys, values, left++, right--);
+        }
+      }
+      // recurse into the smaller half, loop over the larger one
+      if (right - low < high - left) {
+        sortParallel(keys, values, low, right + 1);
+        low = left;
+      } else {
+        sortParallel(keys, values, left, high + 1);
+        high = right;
+      }
+    }
+    for (int iter = low + 1; iter <= high; iter++) {
+      final long key = keys[iter];
+      final int value = values[iter];
+      int slot = iter - 1;
+      while (slot >= low && keys[slot] > key) {
+        keys[slot + 1] = keys[slot];
+        values[slot + 1] = values[slot];
+        slot--;
+      }
+      keys[slot + 1] = key;
+      values[slot + 1] = value;
+    }
+  }
+
+  private static void swap(final long[] keys, final int[] values, final int one, final int two) {
+    final long key = keys[one];
+    keys[one] = keys[two];
+    keys[two] = key;
+    final int value = values[one];
+    values[one] = values[two];
+    values[two] = value;
+  }
+
+}
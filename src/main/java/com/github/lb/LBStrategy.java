@@ -6,5 +6,7 @@ package com.github.lb;
  * @author gaurav
  */
 public enum LBStrategy {
-  SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES, ROUND_ROBIN, WEIGHTED_ROUND_ROBIN;
+  SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES, ROUND_ROBIN, WEIGHTED_ROUND_ROBIN, WEIGHTED_RANDOM,
+  LEAST_OUTSTANDING, PEAK_EWMA, CONSISTENT_HASH, MAGLEV, BOUNDED_LOAD_CONSISTENT_HASH, ZONE_AWARE,
+  SUBSETTING;
 }
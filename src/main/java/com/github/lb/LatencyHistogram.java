@@ -0,0 +1,105 @@
+package com.github.lb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, HDR-style latency histogram. Buckets are log-linear: every power-of-two range is
+ * split into 32 linear sub-buckets, bounding the relative error of any recorded value to ~3%
+ * while covering 0ns through ~18 minutes in about a thousand buckets. Counts are striped across a
+ * few arrays by thread to keep concurrent recorders from contending on the same counters.
+ * 
+ * @author gaurav
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_VALUE_BITS = 40;
+  private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray[] stripes;
+  private final int stripeMask;
+
+  public LatencyHistogram() {
+    int stripeCount = 1;
+    while (stripeCount < Runtime.getRuntime().availableProcessors() && stripeCount < 8) {
+      stripeCount <<= 1;
+    }
+    stripes = new AtomicLongArray[stripeCount];
+    for (int iter = 0; iter < stripeCount; iter++) {
+      stripes[iter] = new AtomicLongArray(BUCKETS);
+    }
+    stripeMask = stripeCount - 1;
+  }
+
+  public void record(final long valueNanos) {
+    final int stripe = (int) (Thread.currentThread().getId() & stripeMask);
+    stripes[stripe].incrementAndGet(bucketIndex(valueNanos));
+  }
+
+  /**
+   * @return the (upper bound of the bucket holding the) value at the given percentile in [0, 100],
+   *         or 0 if nothing was recorded
+   */
+  public long valueAtPercentile(final double percentile) {
+    final long[] counts = counts();
+    long total = 0L;
+    for (final long count : counts) {
+      total += count;
+    }
+    return valueAtPercentile(counts, total, percentile);
+  }
+
+  public long getTotalCount() {
+    long total = 0L;
+    for (final long count : counts()) {
+      total += count;
+    }
+    return total;
+  }
+
+  long[] counts() {
+    final long[] counts = new long[BUCKETS];
+    for (final AtomicLongArray stripe : stripes) {
+      for (int iter = 0; iter < BUCKETS; iter++) {
+        counts[iter] += stripe.get(iter);
+      }
+    }
+    return counts;
+  }
+
+  static long valueAtPercentile(final long[] counts, final long total, final double percentile) {
+    if (total == 0L) {
+      return 0L;
+    }
+    final long target = Math.max(1L, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+    long cumulative = 0L;
+    for (int iter = 0; iter < counts.length; iter++) {
+      cumulative += counts[iter];
+      if (cumulative >= target) {
+        return bucketUpperBound(iter);
+      }
+    }
+    return bucketUpperBound(counts.length - 1);
+  }
+
+  static int bucketIndex(final long value) {
+    final long clamped = value < 0L ? 0L : Math.min(value, MAX_VALUE);
+    if (clamped < SUB_BUCKETS) {
+      return (int) clamped;
+    }
+    final int shift = (63 - Long.numberOfLeadingZeros(clamped)) - SUB_BUCKET_BITS;
+    final int mantissa = (int) (clamped >>> shift);
+    return ((shift + 1) << SUB_BUCKET_BITS) + (mantissa - SUB_BUCKETS);
+  }
+
+  static long bucketUpperBound(final int index) {
+    if (index < SUB_BUCKETS << 1) {
+      return index;
+    }
+    final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    final long mantissa = SUB_BUCKETS + (index & (SUB_BUCKETS - 1));
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+}
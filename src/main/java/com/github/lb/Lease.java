@@ -0,0 +1,113 @@
+package com.github.lb;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A ticket for a request routed to a selected node. Acquiring a lease increments the node's
+ * in-flight counter, within the node's concurrency limit if it has one, and releasing it
+ * decrements the counter again, so load-aware strategies always
+ * see current outstanding request counts without an external reporter. Releasing is idempotent and
+ * reports the time since acquisition as the response latency, see
+ * {@link LoadBalancer#recordResponse(Node, long, boolean)}. Leases are meant to be used with
+ * try-with-resources, calling {@link #release(boolean)} explicitly to report a failure:
+ * 
+ * <pre>
+ * try (Lease lease = lb.lease()) {
+ *   if (!send(request, lease.getNode())) {
+ *     lease.release(false);
+ *   }
+ * }
+ * </pre>
+ * 
+ * @author gaurav
+ */
+public final class Lease implements AutoCloseable {
+  private static final AtomicIntegerFieldUpdater<Lease> RELEASED_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(Lease.class, "released");
+
+  private final AbstractLoadBalancer owner;
+  private final Node node;
+  private final long startNanos;
+  private volatile int released;
+
+  private Lease(final AbstractLoadBalancer owner, final Node node) {
+    this.owner = owner;
+    this.node = node;
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * @return a lease on the node, null if the node reached its concurrency limit
+   */
+  static Lease tryAcquire(final AbstractLoadBalancer owner, final Node node) {
+    if (!node.tryIncrementInFlight()) {
+      return null;
+    }
+    owner.onAcquire(node);
+    return new Lease(owner, node);
+  }
+
+  public Node getNode() {
+    return node;
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  public boolean isReleased() {
+    return released != 0;
+  }
+
+  /**
+   * Release this lease as successful, subsequent calls are no-ops.
+   * 
+   * @return true if this call released the lease
+   */
+  public boolean release() {
+    return release(true);
+  }
+
+  /**
+   * Release this lease reporting the request outcome, subsequent calls are no-ops.
+   * 
+   * @return true if this call released the lease
+   */
+  public boolean release(final boolean success) {
+    if (!RELEASED_UPDATER.compareAndSet(this, 0, 1)) {
+      return false;
+    }
+    final long elapsedNanos = System.nanoTime() - startNanos;
+    node.decrementInFlight();
+    owner.onRelease(node, elapsedNanos);
+    owner.recordResponse(node, elapsedNanos, success);
+    owner.wakeWaiters();
+    return true;
+  }
+
+  /**
+   * Give back a lease that was never handed out, without reporting a response.
+   */
+  void abandon() {
+    if (RELEASED_UPDATER.compareAndSet(this, 0, 1)) {
+      node.decrementInFlight();
+      owner.onRelease(node, System.nanoTime() - startNanos);
+      owner.wakeWaiters();
+    }
+  }
+
+  @Override
+  public void close() {
+    release();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("Lease[").append(node);
+    builder.append(", released:").append(isReleased());
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,88 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A least-outstanding-requests load balancer. Load is modeled as the number of requests in flight
+ * to a node, which {@link Lease}s track automatically: {@link #lease()} counts the request against
+ * the selected node until the lease is released.
+ * 
+ * Small fleets (up to exactScanThreshold nodes) are scanned exactly for the least loaded node,
+ * larger ones pick the better of 2 random choices. Ties are broken at random either way.
+ * 
+ * @author gaurav
+ */
+public class LeastOutstandingLB extends AbstractLoadBalancer {
+  public static final int DEFAULT_EXACT_SCAN_THRESHOLD = 16;
+
+  // reads the NodeTable column by handle, so sampling never dereferences a node
+  private static final IntToDoubleFunction IN_FLIGHT = NodeTable::inFlight;
+
+  private final int exactScanThreshold;
+
+  public LeastOutstandingLB() {
+    this(DEFAULT_EXACT_SCAN_THRESHOLD);
+  }
+
+  public LeastOutstandingLB(final int exactScanThreshold) {
+    if (exactScanThreshold < 0) {
+      throw new IllegalArgumentException("Cannot use an exactScanThreshold < 0");
+    }
+    this.exactScanThreshold = exactScanThreshold;
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    final Node[] nodes = snapshot.nodes();
+    final int[] handles = snapshot.handles();
+    return nodes[RandomChoices.leastCost(handles, choices(nodes.length), IN_FLIGHT,
+        ThreadLocalRandom.current(), null)];
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    final int index = RandomChoices.leastCost(snapshot.handles(), choices(snapshot.size()),
+        IN_FLIGHT, ThreadLocalRandom.current(), exclusion);
+    return index < 0 ? null : snapshot.get(index);
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final Node[] nodes = snapshot.nodes();
+    final int[] handles = snapshot.handles();
+    final int choices = choices(nodes.length);
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = nodes[RandomChoices.leastCost(handles, choices, IN_FLIGHT, random, null)];
+    }
+    return count;
+  }
+
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    return RandomChoices.leastCostDistinct(snapshot, count, choices(snapshot.size()), IN_FLIGHT,
+        ThreadLocalRandom.current(), null, out);
+  }
+
+  @Override
+  protected int selectHedged(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out) {
+    return RandomChoices.leastCostDistinct(snapshot, 2, choices(snapshot.size()), IN_FLIGHT,
+        ThreadLocalRandom.current(), exclusion, out);
+  }
+
+  private int choices(final int size) {
+    return size <= exactScanThreshold ? size : 2;
+  }
+
+  public int getExactScanThreshold() {
+    return exactScanThreshold;
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.LEAST_OUTSTANDING;
+  }
+
+}
@@ -6,7 +6,7 @@ package com.github.lb;
  * @author gaurav
  */
 public class Load implements Comparable<Load> {
-  private Float loadValue = 0.0f;
+  private final float loadValue;
 
   public Load(final Float loadValue) {
     if (loadValue == null || loadValue < 0) {
@@ -17,7 +17,7 @@ public class Load implements Comparable<Load> {
 
   @Override
   public int compareTo(final Load load) {
-    return this.loadValue.compareTo(load.loadValue);
+    return Float.compare(loadValue, load.loadValue);
   }
 
   public Float getLoadValue() {
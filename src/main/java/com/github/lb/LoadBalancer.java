@@ -1,6 +1,9 @@
 package com.github.lb;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Skeleton for a dynamic load balancer.
@@ -11,12 +14,175 @@ public interface LoadBalancer {
 
   Node selectNode();
 
+  /**
+   * Select a node for the given key. Keyed strategies consistently route the same key to the same
+   * node while membership is stable; other strategies ignore the key.
+   */
+  Node selectNode(CharSequence key);
+
+  /**
+   * Select a node for the given key, see {@link #selectNode(CharSequence)}.
+   */
+  Node selectNode(long key);
+
+  /**
+   * Select a node that is not excluded, e.g. one that was not tried before by a retried request.
+   * Strategies skip excluded nodes natively, so that a retry does not land on the node that just
+   * failed.
+   * 
+   * @return null if no node could be selected or every selectable node is excluded
+   */
+  Node selectNode(Exclusion exclusion);
+
+  /**
+   * Select a node for the given key that is not excluded, see {@link #selectNode(Exclusion)}. If
+   * the key's node is excluded, retries of the key consistently move on to the same spare node.
+   */
+  Node selectNode(CharSequence key, Exclusion exclusion);
+
+  /**
+   * Select the two best distinct nodes that are not excluded in one pass, e.g. a primary and the
+   * node to hedge it to, best first. The exclusion is left as given.
+   * 
+   * @return the number of nodes written to out, fewer than 2 if not enough nodes are eligible
+   * @throws SaturatedException if every node that is not excluded reached its concurrency limit
+   */
+  int selectHedged(Exclusion exclusion, Node[] out);
+
+  /**
+   * Select a node without blocking: the returned future completes as soon as a node is available,
+   * right away if one is, or once a node gets added or capacity gets released. Waiting takes no
+   * thread and no monitor, so it is safe from virtual threads. Dependent actions run on the thread
+   * that freed up the node unless attached with an async variant. Cancel the future to stop
+   * waiting.
+   */
+  CompletableFuture<Node> selectNodeAsync();
+
+  /**
+   * See {@link #selectNodeAsync()}, the future completes exceptionally with a
+   * {@link java.util.concurrent.TimeoutException} if no node became available within the timeout.
+   */
+  CompletableFuture<Node> selectNodeAsync(long timeout, TimeUnit unit);
+
+  /**
+   * Select and lease a node without blocking, see {@link #selectNodeAsync()}.
+   */
+  CompletableFuture<Lease> leaseAsync();
+
+  /**
+   * See {@link #leaseAsync()} and {@link #selectNodeAsync(long, TimeUnit)}.
+   */
+  CompletableFuture<Lease> leaseAsync(long timeout, TimeUnit unit);
+
+  /**
+   * Select count nodes in one pass against a single consistent snapshot, e.g. for fan-out. The same
+   * node may be selected more than once. Saturated picks are replaced with spare nodes.
+   * 
+   * @return the number of nodes written to out, 0 if no node could be selected
+   * @throws SaturatedException if every node reached its concurrency limit
+   */
+  int selectNodes(int count, Node[] out);
+
+  /**
+   * Select up to count distinct nodes in one pass against a single consistent snapshot.
+   * 
+   * @return the number of nodes written to out, which is less than count if fewer nodes are
+   *         eligible or spare
+   * @throws SaturatedException if every node reached its concurrency limit
+   */
+  int selectDistinctNodes(int count, Node[] out);
+
+  /**
+   * Select a node and account for the request as in-flight on it until the returned lease is
+   * released.
+   * 
+   * @return a lease on the selected node or null if no node could be selected
+   * @throws SaturatedException if every selectable node reached its concurrency limit
+   */
+  Lease lease();
+
+  /**
+   * Select a node for the given key and lease it, see {@link #lease()} and
+   * {@link #selectNode(CharSequence)}.
+   */
+  Lease lease(CharSequence key);
+
+  /**
+   * Select a node for the given key and lease it, see {@link #lease()} and
+   * {@link #selectNode(long)}.
+   */
+  Lease lease(long key);
+
+  /**
+   * Report the latency and outcome of a request that was routed to the given node. Leases report
+   * automatically when released.
+   */
+  void recordResponse(Node node, long latencyNanos, boolean success);
+
   List<Node> listNodes();
 
+  /**
+   * @return the registered node with the given id, ejected or not, null if none
+   */
+  Node getNode(String id);
+
   boolean addNode(Node node);
 
+  /**
+   * Add all nodes not already present, returning how many were added. Duplicates within nodes are
+   * added once. Load balancers built on {@link AbstractLoadBalancer} publish all of them in a
+   * single membership change.
+   *
+   * @throws IllegalArgumentException if nodes or any of its nodes is null
+   */
+  default int addNodes(final Collection<? extends Node> nodes) {
+    int added = 0;
+    for (final Node node : nodes) {
+      if (addNode(node)) {
+        added++;
+      }
+    }
+    return added;
+  }
+
   boolean removeNode(Node node);
 
   LBStrategy getStrategy();
 
+  /**
+   * Install a listener notified of every selection, {@link SelectionListener#NOOP} to disable.
+   */
+  void setSelectionListener(SelectionListener listener);
+
+  /**
+   * @return selection stats if a {@link SelectionMetrics} listener is installed, else
+   *         {@link LoadBalancerStats#EMPTY}
+   */
+  LoadBalancerStats getStats();
+
+  /**
+   * Install passive health tracking fed by {@link #recordResponse(Node, long, boolean)}, null to
+   * disable. Nodes ejected by a previous detector are re-admitted.
+   */
+  void setOutlierDetector(OutlierDetector detector);
+
+  OutlierDetector getOutlierDetector();
+
+  /**
+   * Ramp newly added and re-admitted nodes up gradually rather than at full weight, null to
+   * disable. Applies to key-less selections only, keyed ones keep their affinity.
+   */
+  void setSlowStart(SlowStart slowStart);
+
+  SlowStart getSlowStart();
+
+  /**
+   * Adapt the concurrency limits of all nodes to observed latency, null to disable and lift the
+   * limits. Selections skip nodes that reached their limit and fail fast with a
+   * {@link SaturatedException} once all selectable nodes did.
+   */
+  void setConcurrencyLimit(AdaptiveConcurrencyLimit limit);
+
+  AdaptiveConcurrencyLimit getConcurrencyLimit();
+
 }
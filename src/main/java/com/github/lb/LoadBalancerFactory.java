@@ -0,0 +1,71 @@
+package com.github.lb;
+
+/**
+ * Maps an {@link LBStrategy} to a new load balancer implementing it. Strategies are created with
+ * their default parameters; build the implementation directly to tune them. Composite strategies
+ * need more than defaults, so {@link LBStrategy#ZONE_AWARE} and {@link LBStrategy#SUBSETTING} are
+ * built by their own factory methods from the strategy to delegate to.
+ *
+ * @author gaurav
+ */
+public final class LoadBalancerFactory {
+
+  private LoadBalancerFactory() {}
+
+  /**
+   * @return a new load balancer for the given strategy with default parameters
+   */
+  public static LoadBalancer newLoadBalancer(final LBStrategy strategy) {
+    if (strategy == null) {
+      throw new IllegalArgumentException("Cannot create a load balancer for a null strategy");
+    }
+    switch (strategy) {
+      case SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES:
+        return new RRandomChoicesOfNNodesLB(2);
+      case ROUND_ROBIN:
+        return new RoundRobinLB();
+      case WEIGHTED_ROUND_ROBIN:
+        return new WeightedRoundRobinLB();
+      case WEIGHTED_RANDOM:
+        return new WeightedRandomLB();
+      case LEAST_OUTSTANDING:
+        return new LeastOutstandingLB();
+      case PEAK_EWMA:
+        return new PeakEwmaLB();
+      case CONSISTENT_HASH:
+        return new ConsistentHashLB();
+      case MAGLEV:
+        return new MaglevLB();
+      case BOUNDED_LOAD_CONSISTENT_HASH:
+        return new BoundedLoadConsistentHashLB();
+      default:
+        throw new IllegalArgumentException(
+            "Cannot create a " + strategy + " load balancer without its delegate strategy");
+    }
+  }
+
+  /**
+   * @return a new {@link ZoneAwareLB} balancing within every zone by zoneStrategy
+   */
+  public static LoadBalancer newZoneAware(final String localZone, final LBStrategy zoneStrategy) {
+    // fail on the calling thread rather than on the first membership change
+    validateDelegateStrategy(zoneStrategy);
+    return new ZoneAwareLB(localZone, () -> newLoadBalancer(zoneStrategy));
+  }
+
+  /**
+   * @return a new {@link SubsettingLB} balancing within its subset by subsetStrategy
+   */
+  public static LoadBalancer newSubsetting(final LBStrategy subsetStrategy, final int clientId,
+      final int clientCount, final int subsetSize) {
+    return new SubsettingLB(newLoadBalancer(subsetStrategy), clientId, clientCount, subsetSize);
+  }
+
+  private static void validateDelegateStrategy(final LBStrategy strategy) {
+    if (strategy == null || strategy == LBStrategy.ZONE_AWARE
+        || strategy == LBStrategy.SUBSETTING) {
+      throw new IllegalArgumentException("Cannot delegate to a " + strategy + " load balancer");
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package com.github.lb;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable point-in-time summary of a load balancer's selections.
+ * 
+ * @author gaurav
+ */
+public final class LoadBalancerStats {
+  public static final LoadBalancerStats EMPTY =
+      new LoadBalancerStats(0L, 0L, 0L, Collections.<String, Long>emptyMap(), 0L, 0L, 0L, 0L, 0L);
+
+  private final long selections;
+  private final long emptySelections;
+  private final long failedSelections;
+  private final Map<String, Long> nodeSelections;
+  private final long removedSelections;
+  private final long p50LatencyNanos;
+  private final long p99LatencyNanos;
+  private final long p999LatencyNanos;
+  private final long maxLatencyNanos;
+
+  LoadBalancerStats(final long selections, final long emptySelections,
+      final long failedSelections, final Map<String, Long> nodeSelections,
+      final long removedSelections, final long p50LatencyNanos, final long p99LatencyNanos,
+      final long p999LatencyNanos, final long maxLatencyNanos) {
+    this.selections = selections;
+    this.emptySelections = emptySelections;
+    this.failedSelections = failedSelections;
+    this.nodeSelections = Collections.unmodifiableMap(nodeSelections);
+    this.removedSelections = removedSelections;
+    this.p50LatencyNanos = p50LatencyNanos;
+    this.p99LatencyNanos = p99LatencyNanos;
+    this.p999LatencyNanos = p999LatencyNanos;
+    this.maxLatencyNanos = maxLatencyNanos;
+  }
+
+  public long getSelections() {
+    return selections;
+  }
+
+  public long getEmptySelections() {
+    return emptySelections;
+  }
+
+  public long getFailedSelections() {
+    return failedSelections;
+  }
+
+  public long getSelections(final Node node) {
+    final Long count = nodeSelections.get(node.getId());
+    return count == null ? 0L : count;
+  }
+
+  /**
+   * @return selections per node id of the current members
+   */
+  public Map<String, Long> getNodeSelections() {
+    return nodeSelections;
+  }
+
+  /**
+   * @return selections of all nodes removed since
+   */
+  public long getRemovedSelections() {
+    return removedSelections;
+  }
+
+  public long getP50LatencyNanos() {
+    return p50LatencyNanos;
+  }
+
+  public long getP99LatencyNanos() {
+    return p99LatencyNanos;
+  }
+
+  public long getP999LatencyNanos() {
+    return p999LatencyNanos;
+  }
+
+  public long getMaxLatencyNanos() {
+    return maxLatencyNanos;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("LoadBalancerStats[selections:").append(selections);
+    builder.append(", empty:").append(emptySelections);
+    builder.append(", failed:").append(failedSelections);
+    builder.append(", nodes:").append(nodeSelections.size());
+    builder.append(", removed:").append(removedSelections);
+    builder.append(", p50:").append(p50LatencyNanos).append("ns");
+    builder.append(", p99:").append(p99LatencyNanos).append("ns");
+    builder.append(", p999:").append(p999LatencyNanos).append("ns");
+    builder.append(", max:").append(maxLatencyNanos).append("ns");
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,163 @@
+package com.github.lb;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk ingestion of load reports, e.g. fleet-wide load snapshots pushed by a control plane. A batch
+ * is given as parallel arrays of nodes (or node ids), loads and report timestamps in epoch millis
+ * and applied in a single pass straight into the {@link NodeTable} columns, without a {@link Load}
+ * per report. A report is dropped if
+ *
+ * <pre>
+ * timestamp <= timestamp of the last report applied to the node (out of order or duplicate), or
+ * timestamp < now - staleAfter (stale on arrival), or
+ * the load is negative or NaN, or the node id is unknown
+ * </pre>
+ *
+ * A node's load goes stale once its last applied report is older than staleAfter. This is checked
+ * whenever the load is read, so nodes turn stale even if the reports stop altogether, and a fresh
+ * report makes the load current again. {@link #markStale(List)} additionally marks nodes that
+ * never got a report. Load-based strategies such as {@link RRandomChoicesOfNNodesLB} pass over
+ * stale nodes whenever a fresh candidate is sampled.
+ * Batches for the same node are expected to be applied by one thread at a time.
+ *
+ * @author gaurav
+ */
+public final class LoadReports {
+  public static final long DEFAULT_STALE_AFTER_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final long staleAfterMillis;
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  public LoadReports() {
+    this(DEFAULT_STALE_AFTER_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public LoadReports(final long staleAfter, final TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("Cannot use a null time unit");
+    }
+    if (staleAfter <= 0L) {
+      throw new IllegalArgumentException("Cannot use a staleAfter <= 0");
+    }
+    this.staleAfterMillis = unit.toMillis(staleAfter);
+  }
+
+  /**
+   * Apply the first count reports.
+   *
+   * @return the number of reports applied, the rest were dropped
+   */
+  public int apply(final Node[] nodes, final float[] loads, final long[] timestampMillis,
+      final int count) {
+    validateBatch(nodes.length, loads, timestampMillis, count);
+    final long oldest = System.currentTimeMillis() - staleAfterMillis;
+    int accepted = 0;
+    for (int iter = 0; iter < count; iter++) {
+      if (nodes[iter] != null && apply(nodes[iter].getHandle(), loads[iter], timestampMillis[iter],
+          oldest)) {
+        accepted++;
+      }
+    }
+    return tally(accepted, count);
+  }
+
+  /**
+   * Apply the first count reports to the members of the given load balancer by node id, then mark
+   * the members whose reports went stale.
+   *
+   * @return the number of reports applied, the rest were dropped
+   */
+  public int apply(final LoadBalancer loadBalancer, final String[] ids, final float[] loads,
+      final long[] timestampMillis, final int count) {
+    validateBatch(ids.length, loads, timestampMillis, count);
+    final long oldest = System.currentTimeMillis() - staleAfterMillis;
+    int accepted = 0;
+    for (int iter = 0; iter < count; iter++) {
+      final Node node = loadBalancer.getNode(ids[iter]);
+      if (node != null && apply(node.getHandle(), loads[iter], timestampMillis[iter], oldest)) {
+        accepted++;
+      }
+    }
+    markStale(loadBalancer.listNodes());
+    return tally(accepted, count);
+  }
+
+  private boolean apply(final int handle, final float load, final long timestampMillis,
+      final long oldestMillis) {
+    if (!(load >= 0.0f) || timestampMillis < oldestMillis
+        || !NodeTable.advanceReportMillis(handle, timestampMillis)) {
+      return false;
+    }
+    NodeTable.setLoad(handle, load);
+    NodeTable.setStaleAtMillis(handle, timestampMillis + staleAfterMillis);
+    NodeTable.setFlags(handle, NodeTable.STALE, false);
+    return true;
+  }
+
+  /**
+   * Mark the given nodes stale if their last report is older than staleAfter, or if they never got
+   * one, and clear the mark otherwise. Reports going stale need no marking, this is for nodes that
+   * are expected to be reported on but never were.
+   *
+   * @return the number of stale nodes
+   */
+  public int markStale(final List<Node> nodes) {
+    final long oldest = System.currentTimeMillis() - staleAfterMillis;
+    int stale = 0;
+    for (int iter = 0; iter < nodes.size(); iter++) {
+      final int handle = nodes.get(iter).getHandle();
+      final boolean isStale = NodeTable.reportMillis(handle) < oldest;
+      NodeTable.setFlags(handle, NodeTable.STALE, isStale);
+      if (isStale) {
+        stale++;
+      }
+    }
+    return stale;
+  }
+
+  private int tally(final int accepted, final int count) {
+    applied.addAndGet(accepted);
+    dropped.addAndGet(count - accepted);
+    return accepted;
+  }
+
+  private static void validateBatch(final int nodes, final float[] loads,
+      final long[] timestampMillis, final int count) {
+    if (count < 0 || count > nodes || count > loads.length || count > timestampMillis.length) {
+      throw new IllegalArgumentException("Cannot apply " + count + " reports from shorter arrays");
+    }
+  }
+
+  public long getStaleAfterMillis() {
+    return staleAfterMillis;
+  }
+
+  /**
+   * @return the number of reports applied so far
+   */
+  public long getAppliedCount() {
+    return applied.get();
+  }
+
+  /**
+   * @return the number of reports dropped so far
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("LoadReports[staleAfterMillis:").append(staleAfterMillis);
+    builder.append(", applied:").append(applied.get());
+    builder.append(", dropped:").append(dropped.get());
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,141 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A Maglev hashing load balancer for keyed (e.g. L4 flow) affinity. A keyed lookup costs one hash
+ * plus one read of a prime-sized {@link MaglevTable}, and a membership change remaps only a small
+ * fraction of table entries, most of them to or from the node that changed.
+ * 
+ * Tables are rebuilt on the mutating thread on addNode/removeNode, and once per burst of weight
+ * changes of members on the scheduler thread, and swapped in atomically; selections only read the
+ * published table and never lock or build. Until the table of the first nodes is published, keys
+ * are spread over the snapshot by hash instead.
+ * The share of entries remapped by the last swap is reported by {@link #getLastDisruption()}. The
+ * table should be much larger than the fleet: if the fleet outgrows a hundredth of the table size,
+ * the table doubles (to the next prime) as often as needed. A lookup is keyHash mod table size, so
+ * growing remaps almost every key once; the table never shrinks, so that only happens when the
+ * fleet doubles again and not on every membership change. Key-less selections pick a random entry.
+ * 
+ * @author gaurav
+ */
+public class MaglevLB extends AbstractLoadBalancer {
+  public static final int DEFAULT_TABLE_SIZE = 65537;
+  // bounds the growth of the table, 1GB of entries
+  static final int MAX_TABLE_SIZE = 1 << 28;
+
+  private final Object tableLock = new Object();
+  private volatile MaglevTable table;
+  private volatile double lastDisruption;
+
+  public MaglevLB() {
+    this(DEFAULT_TABLE_SIZE);
+  }
+
+  public MaglevLB(final int tableSize) {
+    if (!MaglevTable.isPrime(tableSize)) {
+      throw new IllegalArgumentException("Maglev table size must be prime");
+    }
+    this.table = new MaglevTable(NodeSnapshot.EMPTY, registry.getWeightGeneration(), tableSize);
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    return select(snapshot, ThreadLocalRandom.current().nextLong());
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash) {
+    final MaglevTable current = table;
+    if (current.getSnapshot().isEmpty()) {
+      // only while the first nodes are being published
+      return snapshot.get((int) Long.remainderUnsigned(keyHash, snapshot.size()));
+    }
+    return current.lookup(keyHash);
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final MaglevTable current = table;
+    if (current.getSnapshot().isEmpty()) {
+      return super.select(snapshot, count, out);
+    }
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = current.lookup(random.nextLong());
+    }
+    return count;
+  }
+
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final MaglevTable current = table;
+    if (current.getSnapshot().isEmpty()) {
+      return super.selectDistinct(snapshot, count, out);
+    }
+    final Node[] nodes = current.getSnapshot().nodes();
+    final int target = Math.min(count, nodes.length);
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    int selected = 0;
+    for (int attempt = 0; selected < target && attempt < target * 4; attempt++) {
+      final Node node = current.lookup(random.nextLong());
+      if (!contains(out, selected, node)) {
+        out[selected++] = node;
+      }
+    }
+    return fillDistinct(nodes, out, selected, target);
+  }
+
+  @Override
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    refreshTable();
+  }
+
+  @Override
+  protected void onWeightChange(final NodeSnapshot snapshot) {
+    refreshTable();
+  }
+
+  /**
+   * @return the percentage of table entries remapped to a different node by the last table swap
+   */
+  public double getLastDisruption() {
+    return lastDisruption;
+  }
+
+  public int getTableSize() {
+    return table.size();
+  }
+
+  private void refreshTable() {
+    synchronized (tableLock) {
+      final NodeSnapshot latest = registry.snapshot();
+      final long weightGeneration = registry.getWeightGeneration();
+      final MaglevTable current = table;
+      if (current.getSnapshot() == latest && current.getWeightGeneration() == weightGeneration) {
+        return;
+      }
+      final MaglevTable next =
+          new MaglevTable(latest, weightGeneration, grownSize(current.size(), latest.size()));
+      lastDisruption = MaglevTable.disruption(current, next);
+      table = next;
+    }
+  }
+
+  /**
+   * @return the given table size, doubled to the next prime as often as needed to stay at least 100
+   *         x the number of nodes
+   */
+  static int grownSize(int size, final int nodes) {
+    while (nodes * 100L > size && size < MAX_TABLE_SIZE) {
+      size = MaglevTable.nextPrime((int) Math.min(MAX_TABLE_SIZE, 2L * size));
+    }
+    return size;
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.MAGLEV;
+  }
+
+}
@@ -0,0 +1,119 @@
+package com.github.lb;
+
+import java.util.Arrays;
+
+/**
+ * An immutable Maglev lookup table over a node snapshot: a prime-sized int[] of node indexes,
+ * populated by letting nodes take turns claiming their next preferred free slot. Each node's
+ * preference list is the permutation (offset + j * skip) mod M with offset and skip derived from
+ * two hashes of its id, which spreads slots almost perfectly evenly while keeping most slots on the
+ * same node when membership changes. A node takes as many turns per round as its weight (a weight
+ * of 0 counts as 1).
+ * 
+ * @author gaurav
+ */
+final class MaglevTable {
+  private final NodeSnapshot snapshot;
+  private final long weightGeneration;
+  private final int[] entries;
+
+  MaglevTable(final NodeSnapshot snapshot, final long weightGeneration, final int tableSize) {
+    this.snapshot = snapshot;
+    this.weightGeneration = weightGeneration;
+    this.entries = new int[tableSize];
+    final Node[] nodes = snapshot.nodes();
+    if (nodes.length == 0) {
+      return;
+    }
+
+    final int[] positions = new int[nodes.length];
+    final int[] skips = new int[nodes.length];
+    final int[] turns = new int[nodes.length];
+    for (int iter = 0; iter < nodes.length; iter++) {
+      final long hash = Hashing.hash64(nodes[iter].getId());
+      positions[iter] = (int) ((Hashing.derive(hash, 0) >>> 1) % tableSize);
+      skips[iter] = (int) ((Hashing.derive(hash, 1) >>> 1) % (tableSize - 1)) + 1;
+      turns[iter] = Math.max(1, nodes[iter].getWeightValue());
+    }
+
+    Arrays.fill(entries, -1);
+    int filled = 0;
+    while (true) {
+      for (int iter = 0; iter < nodes.length; iter++) {
+        for (int turn = 0; turn < turns[iter]; turn++) {
+          int position = positions[iter];
+          while (entries[position] >= 0) {
+            position += skips[iter];
+            if (position >= tableSize) {
+              position -= tableSize;
+            }
+          }
+          entries[position] = iter;
+          position += skips[iter];
+          positions[iter] = position >= tableSize ? position - tableSize : position;
+          if (++filled == tableSize) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  Node lookup(final long keyHash) {
+    return snapshot.get(entries[(int) ((keyHash >>> 1) % entries.length)]);
+  }
+
+  /**
+   * @return the percentage of entries whose node differs between the two tables
+   */
+  static double disruption(final MaglevTable before, final MaglevTable after) {
+    if (before.entries.length != after.entries.length || before.snapshot.isEmpty()
+        || after.snapshot.isEmpty()) {
+      return before.snapshot.isEmpty() && after.snapshot.isEmpty() ? 0.0 : 100.0;
+    }
+    final Node[] beforeNodes = before.snapshot.nodes();
+    final Node[] afterNodes = after.snapshot.nodes();
+    int remapped = 0;
+    for (int iter = 0; iter < after.entries.length; iter++) {
+      if (beforeNodes[before.entries[iter]] != afterNodes[after.entries[iter]]) {
+        remapped++;
+      }
+    }
+    return remapped * 100.0 / after.entries.length;
+  }
+
+  NodeSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  long getWeightGeneration() {
+    return weightGeneration;
+  }
+
+  int size() {
+    return entries.length;
+  }
+
+  static boolean isPrime(final int candidate) {
+    if (candidate < 2) {
+      return false;
+    }
+    if (candidate % 2 == 0) {
+      return candidate == 2;
+    }
+    for (int divisor = 3; (long) divisor * divisor <= candidate; divisor += 2) {
+      if (candidate % divisor == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int nextPrime(int candidate) {
+    while (!isPrime(candidate)) {
+      candidate++;
+    }
+    return candidate;
+  }
+
+}
@@ -1,43 +1,231 @@
 package com.github.lb;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 /**
  * Models a node/server/vm/container that can be fronted by a load balancer. The load balancer will
  * need to query attributes of this object and its peers and make an informed decision how to
  * balance and route new incoming load.
  * 
+ * Load, weight and in-flight count are kept as primitives in the columns of {@link NodeTable}
+ * (load as raw float bits) under the integer handle of this node, so load reports and
+ * selection-time comparisons neither allocate nor unbox and a node is only a thin view over its
+ * handle. {@link Load} and {@link Weight} remain available as compatibility wrappers.
+ * 
+ * A node also belongs to a zone (or rack, or any other locality domain) that locality-aware
+ * strategies such as {@link ZoneAwareLB} prefer to keep traffic within.
+ * 
  * @author gaurav
  */
 public class Node {
+  public static final String DEFAULT_ZONE = "default";
+
+  private static final WeakReference<?>[] NO_REGISTRIES = new WeakReference<?>[0];
+
   private final String id;
+  private final String zone;
 
-  // both scalar dimensions (load and weight) are optional
-  private final AtomicReference<Load> loadReference = new AtomicReference<>(new Load(0.0f));
-  private final AtomicReference<Weight> weightReference = new AtomicReference<>(new Weight(0));
+  // row of this node in the NodeTable columns; both scalar dimensions (load and weight) are
+  // optional and, like the in-flight count maintained by leases, start at zero
+  private final int handle;
+  // registries this node is a member of, told about weight changes so that only their
+  // weight-derived selection tables get rebuilt; weakly held so that a discarded load balancer is
+  // never kept alive by its nodes
+  private volatile WeakReference<?>[] registries = NO_REGISTRIES;
 
   public Node(final IdProvider idProvider) {
+    this(idProvider, DEFAULT_ZONE);
+  }
+
+  public Node(final IdProvider idProvider, final String zone) {
+    if (zone == null) {
+      throw new IllegalArgumentException("Zone cannot be null");
+    }
     id = idProvider.id();
+    this.zone = zone;
+    handle = NodeTable.allocate(this);
   }
 
   public String getId() {
     return id;
   }
 
+  public String getZone() {
+    return zone;
+  }
+
+  int getHandle() {
+    return handle;
+  }
+
   public Load getLoad() {
-    return loadReference.get();
+    return new Load(getLoadValue());
   }
 
   public void setLoad(final Load load) {
-    loadReference.set(load);
+    if (load == null) {
+      throw new IllegalArgumentException("Load cannot be null");
+    }
+    setLoadValue(load.getLoadValue());
+  }
+
+  public float getLoadValue() {
+    return NodeTable.load(handle);
+  }
+
+  public void setLoadValue(final float loadValue) {
+    validateLoad(loadValue);
+    NodeTable.setLoad(handle, loadValue);
+  }
+
+  /**
+   * Atomically add delta to the current load, flooring the result at zero.
+   * 
+   * @return the updated load
+   */
+  public float addLoad(final float delta) {
+    return NodeTable.addLoad(handle, delta);
+  }
+
+  public float incrementLoad() {
+    return addLoad(1.0f);
+  }
+
+  public float decrementLoad() {
+    return addLoad(-1.0f);
+  }
+
+  /**
+   * @return true if the last bulk load report went stale, see {@link LoadReports}
+   */
+  public boolean isLoadStale() {
+    return NodeTable.isStale(handle);
+  }
+
+  /**
+   * @return the epoch millis timestamp of the last applied bulk load report, 0 if none
+   */
+  public long getLoadReportMillis() {
+    return NodeTable.reportMillis(handle);
   }
 
   public Weight getWeight() {
-    return weightReference.get();
+    return new Weight(getWeightValue());
   }
 
   public void setWeight(final Weight weight) {
-    weightReference.set(weight);
+    if (weight == null) {
+      throw new IllegalArgumentException("Weight cannot be null");
+    }
+    setWeightValue(weight.getWeightValue());
+  }
+
+  public int getWeightValue() {
+    return NodeTable.weight(handle);
+  }
+
+  public void setWeightValue(final int weightValue) {
+    if (weightValue < 0) {
+      throw new IllegalArgumentException("Weight value cannot be negative");
+    }
+    NodeTable.setWeight(handle, weightValue);
+    for (final WeakReference<?> reference : registries) {
+      final NodeRegistry registry = (NodeRegistry) reference.get();
+      if (registry != null) {
+        registry.onWeightChange(this);
+      }
+    }
+  }
+
+  public int getInFlight() {
+    return NodeTable.inFlight(handle);
+  }
+
+  public int incrementInFlight() {
+    return NodeTable.addInFlight(handle, 1);
+  }
+
+  public int decrementInFlight() {
+    return NodeTable.addInFlight(handle, -1);
+  }
+
+  /**
+   * Count a request against this node unless it is saturated.
+   * 
+   * @return true if the in-flight count was incremented, false if it already reached the limit
+   */
+  public boolean tryIncrementInFlight() {
+    return NodeTable.tryAcquire(handle);
+  }
+
+  /**
+   * @return the maximum number of requests in flight to this node, 0 if unlimited
+   */
+  public int getConcurrencyLimit() {
+    return NodeTable.limit(handle);
+  }
+
+  /**
+   * Cap the requests in flight to this node, 0 to lift the cap. Selections skip saturated nodes.
+   */
+  public void setConcurrencyLimit(final int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Concurrency limit cannot be negative");
+    }
+    NodeTable.setLimit(handle, limit);
+  }
+
+  /**
+   * @return true if this node has a concurrency limit and reached it
+   */
+  public boolean isSaturated() {
+    return NodeTable.saturated(handle);
+  }
+
+  /**
+   * Tell the registry about weight changes of this node from now on.
+   */
+  synchronized void watch(final NodeRegistry registry) {
+    final WeakReference<?>[] current = registries;
+    final WeakReference<?>[] next = new WeakReference<?>[current.length + 1];
+    int size = 0;
+    for (final WeakReference<?> reference : current) {
+      final Object watcher = reference.get();
+      if (watcher == registry) {
+        return;
+      }
+      if (watcher != null) {
+        next[size++] = reference;
+      }
+    }
+    next[size++] = new WeakReference<>(registry);
+    registries = next.length == size ? next : Arrays.copyOf(next, size);
+  }
+
+  /**
+   * Stop telling the registry about weight changes, unless this node became a member again.
+   */
+  synchronized void unwatch(final NodeRegistry registry) {
+    if (registry.snapshot().getMember(id) == this) {
+      return;
+    }
+    final WeakReference<?>[] current = registries;
+    final WeakReference<?>[] next = new WeakReference<?>[current.length];
+    int size = 0;
+    for (final WeakReference<?> reference : current) {
+      final Object watcher = reference.get();
+      if (watcher != null && watcher != registry) {
+        next[size++] = reference;
+      }
+    }
+    registries = size == 0 ? NO_REGISTRIES : Arrays.copyOf(next, size);
+  }
+
+  private static void validateLoad(final float loadValue) {
+    if (!(loadValue >= 0.0f)) {
+      throw new IllegalArgumentException("Load value cannot be negative or NaN");
+    }
   }
 
   @Override
@@ -74,8 +262,11 @@ public class Node {
   public String toString() {
     StringBuilder builder = new StringBuilder();
     builder.append("Node[id:").append(id);
-    builder.append(", ").append(loadReference.get());
-    builder.append(", ").append(weightReference.get());
+    builder.append(", zone:").append(zone);
+    builder.append(", load:").append(getLoadValue());
+    builder.append(", weight:").append(getWeightValue());
+    builder.append(", inFlight:").append(getInFlight());
+    builder.append(", limit:").append(getConcurrencyLimit());
     builder.append("]");
     return builder.toString();
   }
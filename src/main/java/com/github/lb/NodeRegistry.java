@@ -0,0 +1,190 @@
+package com.github.lb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free, copy-on-write registry of nodes shared by load balancer implementations.
+ *
+ * Readers simply dereference the currently published {@link NodeSnapshot} and are never blocked.
+ * Writers copy the current snapshot, apply their change and publish it with a single CAS; a writer
+ * that loses the race retries against the newer snapshot, so concurrent membership changes are
+ * serialized without ever being dropped.
+ *
+ * Members tell their registries about weight changes: the registry bumps its weight generation and
+ * calls back on the thread that changed the weight, which only has to schedule a rebuild of
+ * weight-derived selection tables. Weight changes of nodes that are not members leave the registry
+ * alone.
+ *
+ * @author gaurav
+ */
+public final class NodeRegistry {
+  private static final Node[] NO_NODES = new Node[0];
+
+  private final AtomicReference<NodeSnapshot> snapshotReference =
+      new AtomicReference<>(NodeSnapshot.EMPTY);
+  private final AtomicLong weightGeneration = new AtomicLong();
+  private final Runnable weightListener;
+
+  public NodeRegistry() {
+    this(() -> {});
+  }
+
+  /**
+   * @param weightListener called after the weight of a member changed
+   */
+  NodeRegistry(final Runnable weightListener) {
+    this.weightListener = weightListener;
+  }
+
+  public NodeSnapshot snapshot() {
+    return snapshotReference.get();
+  }
+
+  public List<Node> listNodes() {
+    return snapshotReference.get().getMembers();
+  }
+
+  /**
+   * @return a counter bumped on every weight change of a member
+   */
+  public long getWeightGeneration() {
+    return weightGeneration.get();
+  }
+
+  void onWeightChange(final Node node) {
+    if (snapshot().getMember(node.getId()) == node) {
+      weightGeneration.incrementAndGet();
+      weightListener.run();
+    }
+  }
+
+  /**
+   * Add the node unless it is already registered.
+   */
+  public boolean addNode(final Node node) {
+    if (node == null) {
+      throw new IllegalArgumentException("Cannot add a null node");
+    }
+    while (true) {
+      final NodeSnapshot current = snapshotReference.get();
+      if (current.isMember(node)) {
+        return false;
+      }
+      if (snapshotReference.compareAndSet(current, current.withNode(node))) {
+        node.watch(this);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Add all nodes that are not already registered in a single swap. Nothing is added if the
+   * collection or any node in it is null.
+   * 
+   * @return the number of nodes added
+   */
+  public int addNodes(final Collection<? extends Node> nodes) {
+    return add(nodes).length;
+  }
+
+  /**
+   * @return the nodes actually added, in order
+   */
+  Node[] add(final Collection<? extends Node> nodes) {
+    if (nodes == null) {
+      throw new IllegalArgumentException("Cannot add a null collection of nodes");
+    }
+    while (true) {
+      final NodeSnapshot current = snapshotReference.get();
+      final Node[] members = current.members();
+      final Set<Node> present = new HashSet<>(current.getMembers());
+      final Node[] added = Arrays.copyOf(members, members.length + nodes.size());
+      int size = members.length;
+      for (final Node node : nodes) {
+        if (node == null) {
+          throw new IllegalArgumentException("Cannot add a null node");
+        }
+        if (present.add(node)) {
+          added[size++] = node;
+        }
+      }
+      if (size == members.length) {
+        return NO_NODES;
+      }
+      final Node[] newcomers = Arrays.copyOfRange(added, members.length, size);
+      if (snapshotReference.compareAndSet(current, current.withNodes(newcomers))) {
+        for (final Node node : newcomers) {
+          node.watch(this);
+        }
+        return newcomers;
+      }
+    }
+  }
+
+  /**
+   * Remove the node if it is registered.
+   */
+  public boolean removeNode(final Node node) {
+    if (node == null) {
+      throw new IllegalArgumentException("Cannot remove a null node");
+    }
+    while (true) {
+      final NodeSnapshot current = snapshotReference.get();
+      if (!current.isMember(node)) {
+        return false;
+      }
+      if (snapshotReference.compareAndSet(current, current.withoutMember(node))) {
+        node.unwatch(this);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Take a selectable node out of selection while keeping it registered, unless that would leave
+   * more than maxEjectionPercent of the members ejected. A maxEjectionPercent > 0 always allows one
+   * ejected node, even where the percentage of a small fleet rounds down to none.
+   */
+  public boolean ejectNode(final Node node, final int maxEjectionPercent) {
+    if (node == null) {
+      throw new IllegalArgumentException("Cannot eject a null node");
+    }
+    while (true) {
+      final NodeSnapshot current = snapshotReference.get();
+      final int index = current.indexOf(node);
+      final long maxEjected = maxEjectionPercent == 0 ? 0L
+          : Math.max(1L, (long) current.getMembers().size() * maxEjectionPercent / 100);
+      if (index < 0 || current.getEjectedCount() >= maxEjected) {
+        return false;
+      }
+      if (snapshotReference.compareAndSet(current, current.withEjected(index))) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Open an ejected member up for selection again.
+   */
+  public boolean readmitNode(final Node node) {
+    if (node == null) {
+      throw new IllegalArgumentException("Cannot readmit a null node");
+    }
+    while (true) {
+      final NodeSnapshot current = snapshotReference.get();
+      if (!current.isMember(node) || current.indexOf(node) >= 0) {
+        return false;
+      }
+      if (snapshotReference.compareAndSet(current, current.withReadmitted(node))) {
+        return true;
+      }
+    }
+  }
+
+}
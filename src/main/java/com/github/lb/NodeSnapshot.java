@@ -0,0 +1,279 @@
+package com.github.lb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, versioned view of the nodes registered with a load balancer. Snapshots are never
+ * mutated once published, so selection paths can index into them without any locking; membership
+ * changes publish a fresh snapshot with a bumped version instead.
+ * 
+ * A snapshot tells the registered members apart from the nodes open for selection: temporarily
+ * ejected members stay registered but are left out of {@link #size()} and {@link #get(int)}, so
+ * selection paths never check node health per call.
+ * 
+ * Every selectable node also carries the time it was opened up for selection, on add or on
+ * re-admission. Nodes are only ever appended, so these join times are ascending and the most
+ * recently joined nodes always form a suffix of the snapshot.
+ *
+ * @author gaurav
+ */
+public final class NodeSnapshot {
+  static final NodeSnapshot EMPTY = new NodeSnapshot(new Node[0], new Node[0], new long[0], 0L);
+
+  // selectable nodes, the same array as members until a member is ejected
+  private final Node[] nodes;
+  private final Node[] members;
+  // System.nanoTime() each selectable node joined at, ascending
+  private final long[] joinedNanos;
+  // NodeTable handles of the selectable nodes, aligned with nodes
+  private final int[] handles;
+  private final long version;
+  private final List<Node> view;
+  private final List<Node> memberView;
+  // members by id, built on first lookup
+  private volatile Map<String, Node> membersById;
+  // open addressing from handle to index + 1 of the selectable node, 0 if empty, built on first use
+  private volatile int[] handleIndex;
+
+  private NodeSnapshot(final Node[] nodes, final Node[] members, final long[] joinedNanos,
+      final long version) {
+    this.nodes = nodes;
+    this.members = members;
+    this.joinedNanos = joinedNanos;
+    this.handles = new int[nodes.length];
+    for (int iter = 0; iter < nodes.length; iter++) {
+      handles[iter] = nodes[iter].getHandle();
+    }
+    this.version = version;
+    this.view = Collections.unmodifiableList(Arrays.asList(nodes));
+    this.memberView =
+        nodes == members ? view : Collections.unmodifiableList(Arrays.asList(members));
+  }
+
+  public int size() {
+    return nodes.length;
+  }
+
+  public boolean isEmpty() {
+    return nodes.length == 0;
+  }
+
+  public Node get(final int index) {
+    return nodes[index];
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the System.nanoTime() the selectable node at index joined at
+   */
+  public long getJoinedNanos(final int index) {
+    return joinedNanos[index];
+  }
+
+  /**
+   * @return the index of the first selectable node that joined after sinceNanos, size() if none
+   */
+  public int joinedAfter(final long sinceNanos) {
+    int low = 0, high = joinedNanos.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (joinedNanos[middle] - sinceNanos > 0L) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  public int indexOf(final Node node) {
+    return indexOf(nodes, node);
+  }
+
+  public List<Node> asList() {
+    return view;
+  }
+
+  /**
+   * @return all registered nodes, ejected ones included
+   */
+  public List<Node> getMembers() {
+    return memberView;
+  }
+
+  public boolean isMember(final Node node) {
+    return indexOf(members, node) >= 0;
+  }
+
+  /**
+   * @return the member with the given id, ejected or not, null if none
+   */
+  public Node getMember(final String id) {
+    Map<String, Node> index = membersById;
+    if (index == null) {
+      // racing threads build equal indexes, whichever is published last wins
+      index = new HashMap<>(members.length * 4 / 3 + 1);
+      for (final Node member : members) {
+        index.put(member.getId(), member);
+      }
+      membersById = index;
+    }
+    return index.get(id);
+  }
+
+  public int getEjectedCount() {
+    return members.length - nodes.length;
+  }
+
+  private static int indexOf(final Node[] nodes, final Node node) {
+    for (int iter = 0; iter < nodes.length; iter++) {
+      if (nodes[iter].equals(node)) {
+        return iter;
+      }
+    }
+    return -1;
+  }
+
+  // hot paths index the backing array directly, callers must never mutate it
+  Node[] nodes() {
+    return nodes;
+  }
+
+  // NodeTable handles aligned with nodes(), for strategies that read node state by handle
+  int[] handles() {
+    return handles;
+  }
+
+  /**
+   * @return the index of the selectable node with the given {@link NodeTable} handle, -1 if none
+   */
+  int indexOfHandle(final int handle) {
+    final int[] index = indexHandles();
+    final int mask = index.length - 1;
+    for (int slot = slot(handle, mask);; slot = (slot + 1) & mask) {
+      final int entry = index[slot];
+      if (entry == 0) {
+        return -1;
+      }
+      if (handles[entry - 1] == handle) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /**
+   * Build the handle index unless built already, e.g. ahead of selections that need it.
+   */
+  int[] indexHandles() {
+    int[] index = handleIndex;
+    if (index == null) {
+      // racing threads build equal indexes, whichever is published last wins
+      index = new int[Integer.highestOneBit(Math.max(1, 2 * handles.length - 1)) << 1];
+      final int mask = index.length - 1;
+      for (int iter = 0; iter < handles.length; iter++) {
+        int slot = slot(handles[iter], mask);
+        while (index[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        index[slot] = iter + 1;
+      }
+      handleIndex = index;
+    }
+    return index;
+  }
+
+  private static int slot(final int handle, final int mask) {
+    final int hash = handle * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  Node[] members() {
+    return members;
+  }
+
+  NodeSnapshot withNode(final Node node) {
+    return withNodes(new Node[] {node});
+  }
+
+  NodeSnapshot withNodes(final Node[] added) {
+    final Node[] nextNodes = appended(nodes, added);
+    final long[] nextJoinedNanos = Arrays.copyOf(joinedNanos, nextNodes.length);
+    Arrays.fill(nextJoinedNanos, nodes.length, nextNodes.length, System.nanoTime());
+    return new NodeSnapshot(nextNodes, nodes == members ? nextNodes : appended(members, added),
+        nextJoinedNanos, version + 1);
+  }
+
+  /**
+   * @return a snapshot without the given member, whether it is ejected or not
+   */
+  NodeSnapshot withoutMember(final Node node) {
+    final Node[] remainingMembers = removed(members, indexOf(members, node));
+    final int index = indexOf(nodes, node);
+    if (nodes == members) {
+      return new NodeSnapshot(remainingMembers, remainingMembers, removed(joinedNanos, index),
+          version + 1);
+    }
+    if (index < 0) {
+      return new NodeSnapshot(nodes, remainingMembers, joinedNanos, version + 1);
+    }
+    return new NodeSnapshot(removed(nodes, index), remainingMembers, removed(joinedNanos, index),
+        version + 1);
+  }
+
+  /**
+   * @return a snapshot where the selectable node at index is ejected but stays a member
+   */
+  NodeSnapshot withEjected(final int index) {
+    return new NodeSnapshot(removed(nodes, index), members, removed(joinedNanos, index),
+        version + 1);
+  }
+
+  /**
+   * @return a snapshot where the ejected member is selectable again
+   */
+  NodeSnapshot withReadmitted(final Node node) {
+    // appended rather than restored in place, so derived tables can update incrementally
+    final long[] nextJoinedNanos = Arrays.copyOf(joinedNanos, nodes.length + 1);
+    nextJoinedNanos[nodes.length] = System.nanoTime();
+    return new NodeSnapshot(appended(nodes, new Node[] {node}), members, nextJoinedNanos,
+        version + 1);
+  }
+
+  private static Node[] appended(final Node[] nodes, final Node[] added) {
+    final Node[] joined = Arrays.copyOf(nodes, nodes.length + added.length);
+    System.arraycopy(added, 0, joined, nodes.length, added.length);
+    return joined;
+  }
+
+  private static Node[] removed(final Node[] nodes, final int index) {
+    final Node[] remaining = new Node[nodes.length - 1];
+    System.arraycopy(nodes, 0, remaining, 0, index);
+    System.arraycopy(nodes, index + 1, remaining, index, nodes.length - index - 1);
+    return remaining;
+  }
+
+  private static long[] removed(final long[] values, final int index) {
+    final long[] remaining = new long[values.length - 1];
+    System.arraycopy(values, 0, remaining, 0, index);
+    System.arraycopy(values, index + 1, remaining, index, values.length - index - 1);
+    return remaining;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("NodeSnapshot[version:").append(version);
+    builder.append(", nodes:").append(nodes.length);
+    builder.append(", ejected:").append(getEjectedCount());
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,280 @@
+package com.github.lb;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Struct-of-arrays storage for the mutable state of every {@link Node}: load (as raw float bits),
+ * weight, in-flight count, concurrency limit, status flags and the timestamp of the last bulk load
+ * report each live in their own dense column, indexed by the integer handle a node is assigned on
+ * construction. A {@link Node} is only a thin view over its handle, so strategies scanning or
+ * sampling large fleets walk compact primitive columns through the handles cached in each
+ * {@link NodeSnapshot} instead of chasing one object per candidate.
+ *
+ * Columns are paged, so growing the table never copies or moves existing state and readers never
+ * lock. Handles of nodes that got garbage collected are recycled on later allocations.
+ *
+ * @author gaurav
+ */
+final class NodeTable {
+  // set on members that never got a load report by LoadReports#markStale, reports going stale
+  // later are caught at read time against their stale deadline
+  static final int STALE = 1;
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private static final Object allocationLock = new Object();
+  private static final ReferenceQueue<Node> collected = new ReferenceQueue<>();
+  // keeps the phantom references themselves reachable until their node is collected
+  private static final Set<HandleReference> live = new HashSet<>();
+  private static volatile Page[] pages = new Page[0];
+  // guarded by allocationLock
+  private static int[] freeHandles = new int[16];
+  private static int freeCount;
+  private static int nextHandle;
+
+  private NodeTable() {}
+
+  /**
+   * @return a zeroed handle for the given node, recycled once the node is garbage collected
+   */
+  static int allocate(final Node node) {
+    synchronized (allocationLock) {
+      Reference<? extends Node> reference;
+      while ((reference = collected.poll()) != null) {
+        final HandleReference released = (HandleReference) reference;
+        live.remove(released);
+        if (freeCount == freeHandles.length) {
+          freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = released.handle;
+      }
+      final int handle;
+      if (freeCount > 0) {
+        handle = freeHandles[--freeCount];
+        final Page page = pages[handle >>> PAGE_BITS];
+        final int slot = handle & PAGE_MASK;
+        page.loadBits.set(slot, 0);
+        page.weights.set(slot, 0);
+        page.inFlight.set(slot, 0);
+        page.limits.set(slot, 0);
+        page.flags.set(slot, 0);
+        page.reportMillis.set(slot, 0L);
+        page.staleAtMillis.set(slot, 0L);
+      } else {
+        handle = nextHandle++;
+        if (handle >>> PAGE_BITS == pages.length) {
+          final Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+          grown[pages.length] = new Page();
+          pages = grown;
+        }
+      }
+      live.add(new HandleReference(node, handle));
+      return handle;
+    }
+  }
+
+  /**
+   * @return the number of handles in use
+   */
+  static int size() {
+    synchronized (allocationLock) {
+      return nextHandle - freeCount;
+    }
+  }
+
+  static float load(final int handle) {
+    return Float.intBitsToFloat(page(handle).loadBits.get(handle & PAGE_MASK));
+  }
+
+  static void setLoad(final int handle, final float load) {
+    page(handle).loadBits.set(handle & PAGE_MASK, Float.floatToRawIntBits(load));
+  }
+
+  /**
+   * Atomically add delta to the load, flooring the result at zero.
+   *
+   * @return the updated load
+   */
+  static float addLoad(final int handle, final float delta) {
+    final AtomicIntegerArray loadBits = page(handle).loadBits;
+    final int slot = handle & PAGE_MASK;
+    while (true) {
+      final int currentBits = loadBits.get(slot);
+      final float updated = Math.max(0.0f, Float.intBitsToFloat(currentBits) + delta);
+      if (loadBits.compareAndSet(slot, currentBits, Float.floatToRawIntBits(updated))) {
+        return updated;
+      }
+    }
+  }
+
+  static int weight(final int handle) {
+    return page(handle).weights.get(handle & PAGE_MASK);
+  }
+
+  static void setWeight(final int handle, final int weight) {
+    page(handle).weights.set(handle & PAGE_MASK, weight);
+  }
+
+  static int inFlight(final int handle) {
+    return page(handle).inFlight.get(handle & PAGE_MASK);
+  }
+
+  static int addInFlight(final int handle, final int delta) {
+    return page(handle).inFlight.addAndGet(handle & PAGE_MASK, delta);
+  }
+
+  /**
+   * Increment the in-flight count unless it already reached a positive concurrency limit.
+   *
+   * @return true if the in-flight count was incremented
+   */
+  static boolean tryAcquire(final int handle) {
+    final Page page = page(handle);
+    final int slot = handle & PAGE_MASK;
+    while (true) {
+      final int current = page.inFlight.get(slot);
+      final int limit = page.limits.get(slot);
+      if (limit > 0 && current >= limit) {
+        return false;
+      }
+      if (page.inFlight.compareAndSet(slot, current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  static boolean saturated(final int handle) {
+    final Page page = page(handle);
+    final int slot = handle & PAGE_MASK;
+    final int limit = page.limits.get(slot);
+    return limit > 0 && page.inFlight.get(slot) >= limit;
+  }
+
+  static int limit(final int handle) {
+    return page(handle).limits.get(handle & PAGE_MASK);
+  }
+
+  static void setLimit(final int handle, final int limit) {
+    page(handle).limits.set(handle & PAGE_MASK, limit);
+  }
+
+  static boolean compareAndSetLimit(final int handle, final int expected, final int limit) {
+    return page(handle).limits.compareAndSet(handle & PAGE_MASK, expected, limit);
+  }
+
+  static int flags(final int handle) {
+    return page(handle).flags.get(handle & PAGE_MASK);
+  }
+
+  /**
+   * Atomically set or clear the given flag bits.
+   *
+   * @return true if the flags changed
+   */
+  static boolean setFlags(final int handle, final int bits, final boolean set) {
+    final AtomicIntegerArray flags = page(handle).flags;
+    final int slot = handle & PAGE_MASK;
+    while (true) {
+      final int current = flags.get(slot);
+      final int updated = set ? current | bits : current & ~bits;
+      if (current == updated) {
+        return false;
+      }
+      if (flags.compareAndSet(slot, current, updated)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return the load, or positive infinity if the load report went stale so that least-load
+   *         comparisons pass over the node whenever a fresh candidate is available
+   */
+  static float reportedLoad(final int handle) {
+    final Page page = page(handle);
+    final int slot = handle & PAGE_MASK;
+    return isStale(page, slot) ? Float.POSITIVE_INFINITY
+        : Float.intBitsToFloat(page.loadBits.get(slot));
+  }
+
+  /**
+   * @return true if the node is marked stale or its last load report outlived its stale deadline,
+   *         checked on every read so that reports stopping altogether still turn stale
+   */
+  static boolean isStale(final int handle) {
+    return isStale(page(handle), handle & PAGE_MASK);
+  }
+
+  private static boolean isStale(final Page page, final int slot) {
+    if ((page.flags.get(slot) & STALE) != 0) {
+      return true;
+    }
+    // only nodes fed by load reports pay for the clock read
+    final long staleAt = page.staleAtMillis.get(slot);
+    return staleAt != 0L && System.currentTimeMillis() >= staleAt;
+  }
+
+  /**
+   * Set the epoch millis at which the last load report goes stale, 0 for never.
+   */
+  static void setStaleAtMillis(final int handle, final long staleAtMillis) {
+    page(handle).staleAtMillis.set(handle & PAGE_MASK, staleAtMillis);
+  }
+
+  static long reportMillis(final int handle) {
+    return page(handle).reportMillis.get(handle & PAGE_MASK);
+  }
+
+  /**
+   * Advance the report timestamp to reportMillis unless an equal or newer report was applied.
+   *
+   * @return true if the timestamp advanced
+   */
+  static boolean advanceReportMillis(final int handle, final long reportMillis) {
+    final AtomicLongArray timestamps = page(handle).reportMillis;
+    final int slot = handle & PAGE_MASK;
+    while (true) {
+      final long current = timestamps.get(slot);
+      if (reportMillis <= current) {
+        return false;
+      }
+      if (timestamps.compareAndSet(slot, current, reportMillis)) {
+        return true;
+      }
+    }
+  }
+
+  private static Page page(final int handle) {
+    return pages[handle >>> PAGE_BITS];
+  }
+
+  // one column per field, so scans over a single field stay dense
+  private static final class Page {
+    private final AtomicIntegerArray loadBits = new AtomicIntegerArray(PAGE_SIZE);
+    private final AtomicIntegerArray weights = new AtomicIntegerArray(PAGE_SIZE);
+    private final AtomicIntegerArray inFlight = new AtomicIntegerArray(PAGE_SIZE);
+    private final AtomicIntegerArray limits = new AtomicIntegerArray(PAGE_SIZE);
+    private final AtomicIntegerArray flags = new AtomicIntegerArray(PAGE_SIZE);
+    private final AtomicLongArray reportMillis = new AtomicLongArray(PAGE_SIZE);
+    private final AtomicLongArray staleAtMillis = new AtomicLongArray(PAGE_SIZE);
+  }
+
+  private static final class HandleReference extends PhantomReference<Node> {
+    private final int handle;
+
+    private HandleReference(final Node node, final int handle) {
+      super(node, collected);
+      this.handle = handle;
+    }
+  }
+
+}
@@ -0,0 +1,253 @@
+package com.github.lb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Passive health tracking for the nodes of one load balancer, see
+ * {@link LoadBalancer#setOutlierDetector(OutlierDetector)}. Every reported response lands in a
+ * per-node sliding window of success/failure counts and a consecutive-failure counter. A node is
+ * ejected when either
+ *
+ * <pre>
+ * consecutiveFailures >= consecutiveFailureThreshold, or
+ * requests >= minimumRequests and failures * 100 >= requests * failureRatePercent
+ * </pre>
+ *
+ * over the window. Ejected nodes are left out of the published selection snapshot and re-admitted
+ * by the shared scheduler thread after a backoff that doubles with every ejection in a row, capped
+ * at maxEjectionTime. A node that stayed admitted for longer than maxEjectionTime starts over at
+ * baseEjectionTime. At most maxEjectionPercent of the members are ejected at any time, but at least
+ * one if maxEjectionPercent > 0, so that small fleets still get their outliers ejected.
+ *
+ * Only members are tracked: the load balancer starts tracking nodes as they are added and forgets
+ * them as they are removed, so responses of removed nodes are ignored rather than kept forever.
+ *
+ * Window buckets pack an epoch tag and both counts into a single long updated by CAS, so recording
+ * is lock-free and never allocates.
+ *
+ * @author gaurav
+ */
+public final class OutlierDetector {
+  public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+  public static final int DEFAULT_FAILURE_RATE_PERCENT = 50;
+  public static final int DEFAULT_MINIMUM_REQUESTS = 20;
+  public static final int DEFAULT_MAX_EJECTION_PERCENT = 50;
+  public static final long DEFAULT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+  public static final long DEFAULT_BASE_EJECTION_NANOS = TimeUnit.SECONDS.toNanos(30);
+  public static final long DEFAULT_MAX_EJECTION_NANOS = TimeUnit.SECONDS.toNanos(300);
+
+  private static final int BUCKETS = 10;
+  // bucket layout: 24 bit epoch tag | 20 bit failures | 20 bit successes
+  private static final int COUNT_BITS = 20;
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+  private static final int TAG_SHIFT = 2 * COUNT_BITS;
+  private static final long TAG_MASK = (1L << (64 - TAG_SHIFT)) - 1;
+
+  private final ConcurrentHashMap<Node, Health> health = new ConcurrentHashMap<>();
+  private final int consecutiveFailureThreshold;
+  private final int failureRatePercent;
+  private final int minimumRequests;
+  private final int maxEjectionPercent;
+  private final long bucketNanos;
+  private final long baseEjectionNanos;
+  private final long maxEjectionNanos;
+
+  public OutlierDetector() {
+    this(DEFAULT_CONSECUTIVE_FAILURES, DEFAULT_FAILURE_RATE_PERCENT, DEFAULT_MINIMUM_REQUESTS,
+        DEFAULT_MAX_EJECTION_PERCENT, DEFAULT_WINDOW_NANOS, DEFAULT_BASE_EJECTION_NANOS,
+        DEFAULT_MAX_EJECTION_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  public OutlierDetector(final int consecutiveFailureThreshold, final int failureRatePercent,
+      final int minimumRequests, final int maxEjectionPercent, final long window,
+      final long baseEjectionTime, final long maxEjectionTime, final TimeUnit unit) {
+    if (consecutiveFailureThreshold < 1) {
+      throw new IllegalArgumentException("Cannot use a consecutiveFailureThreshold < 1");
+    }
+    if (failureRatePercent < 1 || failureRatePercent > 100) {
+      throw new IllegalArgumentException("Cannot use a failureRatePercent outside 1..100");
+    }
+    if (minimumRequests < 1) {
+      throw new IllegalArgumentException("Cannot use a minimumRequests < 1");
+    }
+    if (maxEjectionPercent < 0 || maxEjectionPercent > 100) {
+      throw new IllegalArgumentException("Cannot use a maxEjectionPercent outside 0..100");
+    }
+    if (unit.toNanos(window) < BUCKETS) {
+      throw new IllegalArgumentException("Cannot use a window shorter than " + BUCKETS + " nanos");
+    }
+    if (baseEjectionTime <= 0L || maxEjectionTime < baseEjectionTime) {
+      throw new IllegalArgumentException("Cannot use ejection times outside 0 < base <= max");
+    }
+    this.consecutiveFailureThreshold = consecutiveFailureThreshold;
+    this.failureRatePercent = failureRatePercent;
+    this.minimumRequests = minimumRequests;
+    this.maxEjectionPercent = maxEjectionPercent;
+    this.bucketNanos = unit.toNanos(window) / BUCKETS;
+    this.baseEjectionNanos = unit.toNanos(baseEjectionTime);
+    this.maxEjectionNanos = unit.toNanos(maxEjectionTime);
+  }
+
+  /**
+   * Record a response outcome.
+   *
+   * @return true if the node crossed a threshold and should be ejected
+   */
+  boolean record(final Node node, final boolean success, final long nowNanos) {
+    final Health state = health.get(node);
+    if (state == null) {
+      return false;
+    }
+    final long epoch = Math.floorDiv(nowNanos, bucketNanos);
+    final AtomicLongArray buckets = state.buckets;
+    final int index = (int) Math.floorMod(epoch, (long) BUCKETS);
+    final long tag = epoch & TAG_MASK;
+    final long increment = success ? 1L : 1L << COUNT_BITS;
+    final int shift = success ? 0 : COUNT_BITS;
+    while (true) {
+      final long current = buckets.get(index);
+      final long base = current >>> TAG_SHIFT == tag ? current : tag << TAG_SHIFT;
+      // counts saturate rather than overflow into the neighboring field
+      final long next = (base >>> shift & COUNT_MASK) == COUNT_MASK ? base : base + increment;
+      if (current == next || buckets.compareAndSet(index, current, next)) {
+        break;
+      }
+    }
+    if (success) {
+      state.consecutiveFailures.set(0);
+      return false;
+    }
+    if (state.ejected) {
+      // responses still trickling in from before the ejection
+      return false;
+    }
+    if (state.consecutiveFailures.incrementAndGet() >= consecutiveFailureThreshold) {
+      return true;
+    }
+    long successes = 0L, failures = 0L;
+    for (int iter = 0; iter < BUCKETS; iter++) {
+      final long bucketEpoch = epoch - iter;
+      final long value = buckets.get((int) Math.floorMod(bucketEpoch, (long) BUCKETS));
+      if (value >>> TAG_SHIFT == (bucketEpoch & TAG_MASK)) {
+        successes += value & COUNT_MASK;
+        failures += value >>> COUNT_BITS & COUNT_MASK;
+      }
+    }
+    final long requests = successes + failures;
+    return requests >= minimumRequests && failures * 100 >= requests * failureRatePercent;
+  }
+
+  public int getMaxEjectionPercent() {
+    return maxEjectionPercent;
+  }
+
+  /**
+   * Mark the node ejected.
+   *
+   * @return the backoff in nanos after which the node is due for re-admission
+   */
+  long onEjected(final Node node, final long nowNanos) {
+    final Health state = health.computeIfAbsent(node, key -> new Health());
+    synchronized (state) {
+      if (state.ejections > 0 && nowNanos - state.readmittedNanos > maxEjectionNanos) {
+        state.ejections = 0;
+      }
+      long backoff = baseEjectionNanos;
+      for (int iter = 0; iter < state.ejections && backoff < maxEjectionNanos; iter++) {
+        backoff <<= 1;
+      }
+      backoff = Math.min(backoff, maxEjectionNanos);
+      state.ejections++;
+      state.readmitNanos = nowNanos + backoff;
+      state.ejected = true;
+      return backoff;
+    }
+  }
+
+  /**
+   * @return true if the node is ejected and its backoff has elapsed
+   */
+  boolean isDue(final Node node, final long nowNanos) {
+    final Health state = health.get(node);
+    return state != null && state.ejected && nowNanos - state.readmitNanos >= 0L;
+  }
+
+  /**
+   * @return the time in nanos the ejected node is due for re-admission at
+   */
+  long getReadmitNanos(final Node node) {
+    final Health state = health.get(node);
+    return state == null ? Long.MIN_VALUE : state.readmitNanos;
+  }
+
+  /**
+   * Give the re-admitted node a clean window.
+   */
+  void onReadmitted(final Node node, final long nowNanos) {
+    final Health state = health.get(node);
+    if (state != null) {
+      synchronized (state) {
+        state.buckets = new AtomicLongArray(BUCKETS);
+        state.consecutiveFailures.set(0);
+        state.readmittedNanos = nowNanos;
+        state.ejected = false;
+      }
+    }
+  }
+
+  /**
+   * Start tracking the responses of a member.
+   */
+  void track(final Node node) {
+    health.computeIfAbsent(node, key -> new Health());
+  }
+
+  void forget(final Node node) {
+    health.remove(node);
+  }
+
+  boolean isTracked(final Node node) {
+    return health.containsKey(node);
+  }
+
+  public boolean isEjected(final Node node) {
+    final Health state = health.get(node);
+    return state != null && state.ejected;
+  }
+
+  /**
+   * @return how often the node got ejected in a row
+   */
+  public int getEjections(final Node node) {
+    final Health state = health.get(node);
+    return state == null ? 0 : state.ejections;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("OutlierDetector[consecutiveFailures:").append(consecutiveFailureThreshold);
+    builder.append(", failureRatePercent:").append(failureRatePercent);
+    builder.append(", minimumRequests:").append(minimumRequests);
+    builder.append(", maxEjectionPercent:").append(maxEjectionPercent);
+    builder.append(", windowNanos:").append(bucketNanos * BUCKETS);
+    builder.append(", baseEjectionNanos:").append(baseEjectionNanos);
+    builder.append(", maxEjectionNanos:").append(maxEjectionNanos);
+    builder.append("]");
+    return builder.toString();
+  }
+
+  private static final class Health {
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private volatile boolean ejected;
+    // written under the lock on this
+    private volatile int ejections;
+    private volatile long readmitNanos;
+    private long readmittedNanos;
+  }
+
+}
@@ -0,0 +1,57 @@
+package com.github.lb;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A monotonically increasing sequence padded out to its own cache line(s), so that hammering it from
+ * many cores does not also invalidate whatever happens to be allocated next to it. Increments map
+ * onto a single atomic fetch-and-add and are therefore wait-free.
+ *
+ * @author gaurav
+ */
+final class PaddedSequence extends PaddedSequenceValue {
+  protected long p11, p12, p13, p14, p15, p16, p17;
+
+  PaddedSequence() {}
+
+  PaddedSequence(final long initialValue) {
+    value = initialValue;
+  }
+
+  long get() {
+    return value;
+  }
+
+  long getAndIncrement() {
+    return VALUE_UPDATER.getAndIncrement(this);
+  }
+
+  long getAndAdd(final long delta) {
+    return VALUE_UPDATER.getAndAdd(this, delta);
+  }
+
+  boolean compareAndSet(final long expected, final long update) {
+    return VALUE_UPDATER.compareAndSet(this, expected, update);
+  }
+
+  void set(final long newValue) {
+    value = newValue;
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(value);
+  }
+
+}
+
+abstract class PaddedSequenceLhs {
+  protected long p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class PaddedSequenceValue extends PaddedSequenceLhs {
+  static final AtomicLongFieldUpdater<PaddedSequenceValue> VALUE_UPDATER =
+      AtomicLongFieldUpdater.newUpdater(PaddedSequenceValue.class, "value");
+
+  protected volatile long value;
+}
@@ -0,0 +1,82 @@
+package com.github.lb;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A lock-free peak-sensitive exponentially weighted moving average of response latency.
+ * 
+ * Observations above the current average replace it outright, so a node that turns slow (GC pause,
+ * noisy neighbor) is penalized immediately, while faster observations only pull the average down
+ * gradually. Decay is time-based rather than per-observation: the weight of the old average is
+ * exp(-elapsed / decay), and reads decay the average towards zero the same way so that a node that
+ * stopped receiving traffic recovers and gets probed again.
+ * 
+ * @author gaurav
+ */
+final class PeakEwma {
+  private static final AtomicLongFieldUpdater<PeakEwma> AVERAGE_BITS_UPDATER =
+      AtomicLongFieldUpdater.newUpdater(PeakEwma.class, "averageBits");
+  private static final AtomicLongFieldUpdater<PeakEwma> STAMP_UPDATER =
+      AtomicLongFieldUpdater.newUpdater(PeakEwma.class, "stampNanos");
+
+  private final double decayNanos;
+
+  // average latency as raw double bits, 0 until the first observation
+  private volatile long averageBits;
+  private volatile long stampNanos;
+
+  PeakEwma(final long decayNanos, final long nowNanos) {
+    this.decayNanos = decayNanos;
+    this.stampNanos = nowNanos;
+  }
+
+  void observe(final long latencyNanos, final long nowNanos) {
+    final double latency = Math.max(0L, latencyNanos);
+    while (true) {
+      final long currentBits = averageBits;
+      final double average = Double.longBitsToDouble(currentBits);
+      final double updated;
+      if (currentBits == 0L || latency > average) {
+        updated = latency;
+      } else {
+        final double weight = weight(nowNanos);
+        updated = average * weight + latency * (1.0 - weight);
+      }
+      final long updatedBits = Double.doubleToRawLongBits(updated);
+      if (AVERAGE_BITS_UPDATER.compareAndSet(this, currentBits, updatedBits)) {
+        break;
+      }
+    }
+    // only ever move the stamp forwards
+    long stamp;
+    do {
+      stamp = stampNanos;
+    } while (nowNanos - stamp > 0L && !STAMP_UPDATER.compareAndSet(this, stamp, nowNanos));
+  }
+
+  /**
+   * @return a new average starting out at this one decayed to nowNanos, decaying with decayNanos
+   */
+  PeakEwma copy(final long decayNanos, final long nowNanos) {
+    final PeakEwma copy = new PeakEwma(decayNanos, nowNanos);
+    copy.averageBits = Double.doubleToRawLongBits(get(nowNanos));
+    return copy;
+  }
+
+  /**
+   * @return the average decayed to nowNanos, 0 if nothing was observed yet
+   */
+  double get(final long nowNanos) {
+    final long currentBits = averageBits;
+    if (currentBits == 0L) {
+      return 0.0;
+    }
+    return Double.longBitsToDouble(currentBits) * weight(nowNanos);
+  }
+
+  private double weight(final long nowNanos) {
+    final long elapsed = nowNanos - stampNanos;
+    return elapsed <= 0L ? 1.0 : Math.exp(-elapsed / decayNanos);
+  }
+
+}
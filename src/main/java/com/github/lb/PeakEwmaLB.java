@@ -0,0 +1,150 @@
+package com.github.lb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A latency-aware load balancer. Each node keeps a {@link PeakEwma} of the response latencies
+ * reported through {@link #recordResponse(Node, long, boolean)} (or released {@link Lease}s), and
+ * selection picks the cheapest of randomChoices random candidates by predicted cost:
+ * 
+ * <pre>
+ * cost = peakEwmaLatency * (inFlight + 1)
+ * </pre>
+ * 
+ * Nodes without any observed latency cost nothing while idle, but are penalized by their in-flight
+ * count so that a new node is probed rather than flooded before its first response comes back.
+ * Averages decay over time, so a node that stopped being selected after a slow spell recovers.
+ * 
+ * @author gaurav
+ */
+public class PeakEwmaLB extends AbstractLoadBalancer {
+  public static final long DEFAULT_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  // cost of a request in flight to a node without observations, 1s
+  private static final double UNOBSERVED_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final ConcurrentHashMap<Node, PeakEwma> latencies = new ConcurrentHashMap<>();
+  private final ToDoubleFunction<Node> cost = this::cost;
+  private final long decayNanos;
+  private final int randomChoices;
+
+  public PeakEwmaLB() {
+    this(2, DEFAULT_DECAY_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  public PeakEwmaLB(final int randomChoices, final long decayTime, final TimeUnit decayUnit) {
+    if (randomChoices < 1) {
+      throw new IllegalArgumentException("Cannot use a randomChoices < 1");
+    }
+    if (decayTime <= 0L) {
+      throw new IllegalArgumentException("Cannot use a decay time <= 0");
+    }
+    this.randomChoices = randomChoices;
+    this.decayNanos = decayUnit.toNanos(decayTime);
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    final Node[] nodes = snapshot.nodes();
+    return nodes[RandomChoices.leastCost(nodes, randomChoices, cost, ThreadLocalRandom.current(),
+        null)];
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    final Node[] nodes = snapshot.nodes();
+    final int index =
+        RandomChoices.leastCost(nodes, randomChoices, cost, ThreadLocalRandom.current(), exclusion);
+    return index < 0 ? null : nodes[index];
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final Node[] nodes = snapshot.nodes();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = nodes[RandomChoices.leastCost(nodes, randomChoices, cost, random, null)];
+    }
+    return count;
+  }
+
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    return RandomChoices.leastCostDistinct(snapshot.nodes(), count, randomChoices, cost,
+        ThreadLocalRandom.current(), null, out);
+  }
+
+  @Override
+  protected int selectHedged(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out) {
+    return RandomChoices.leastCostDistinct(snapshot.nodes(), 2, randomChoices, cost,
+        ThreadLocalRandom.current(), exclusion, out);
+  }
+
+  @Override
+  protected void onResponse(final Node node, final long latencyNanos, final boolean success) {
+    final long now = System.nanoTime();
+    PeakEwma latency = latencies.get(node);
+    if (latency == null) {
+      // late responses of removed nodes must not bring their averages back
+      if (!isMember(node)) {
+        return;
+      }
+      latency = latencies.computeIfAbsent(node, key -> new PeakEwma(decayNanos, now));
+      if (!isMember(node)) {
+        // removed meanwhile, and possibly evicted before the average got in
+        latencies.remove(node, latency);
+        return;
+      }
+    }
+    latency.observe(latencyNanos, now);
+  }
+
+  @Override
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    latencies.keySet().removeIf(node -> snapshot.getMember(node.getId()) != node);
+  }
+
+  /**
+   * Latency averages carry over from a replaced peak EWMA balancer, decaying at this one's rate.
+   */
+  @Override
+  protected void onTakeOver(final LoadBalancer previous) {
+    if (!(previous instanceof PeakEwmaLB)) {
+      return;
+    }
+    final long now = System.nanoTime();
+    for (final Map.Entry<Node, PeakEwma> entry : ((PeakEwmaLB) previous).latencies.entrySet()) {
+      if (isMember(entry.getKey())) {
+        latencies.putIfAbsent(entry.getKey(), entry.getValue().copy(decayNanos, now));
+      }
+    }
+  }
+
+  private boolean isMember(final Node node) {
+    return registry.snapshot().getMember(node.getId()) == node;
+  }
+
+  /**
+   * @return the predicted cost of sending one more request to the node, in nanos
+   */
+  public double cost(final Node node) {
+    final PeakEwma latency = latencies.get(node);
+    final double average = latency == null ? 0.0 : latency.get(System.nanoTime());
+    final int inFlight = node.getInFlight();
+    if (average == 0.0) {
+      return inFlight == 0 ? 0.0 : UNOBSERVED_PENALTY_NANOS + inFlight;
+    }
+    return average * (inFlight + 1);
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.PEAK_EWMA;
+  }
+
+}
@@ -1,18 +1,8 @@
 package com.github.lb;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Random;
-// import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntToDoubleFunction;
 
 /**
  * So, the core idea is to select R random nodes from the list of N total nodes behind the load
@@ -29,25 +19,31 @@ import org.apache.logging.log4j.Logger;
  * over-allocation to the first node, a second round of randomization should be performed to pick 1
  * of the T nodes with same load
  * 
+ * Selection reads the immutable node snapshot without locking and does not allocate: candidates are
+ * sampled as distinct indexes without rejection loops (see {@link RandomChoices}), the least loaded
+ * candidate is found in a single pass and load ties are broken at random. If randomChoices is at
+ * least the number of nodes, every node is considered. Nodes whose bulk load report went stale (see
+ * {@link LoadReports}) only win if every sampled candidate is stale.
+ * 
+ * With {@link AdaptiveRandomChoices} set, randomChoices is tuned at runtime to the spread of node
+ * loads, within its bounds and never beyond the number of nodes.
+ * 
  * Note that this algorithm can work well for an HTTP/L7 or an L4 load balancer. It is important to
  * understand the use-case and associated tradeoffs before selecting an algorithm.
  * 
  * @author gaurav
  */
-public class RRandomChoicesOfNNodesLB implements LoadBalancer {
-  private static final Logger logger =
-      LogManager.getLogger(RRandomChoicesOfNNodesLB.class.getSimpleName());
-
-  private final ReentrantReadWriteLock superLock = new ReentrantReadWriteLock(true);
-  private final WriteLock writeLock = superLock.writeLock();
-  private final ReadLock readLock = superLock.readLock();
-
-  // can cause contention but trading off against better spread/randomization
-  private final Random randomizer = new Random();
-
-  // both activeNodes and randomChoices could change at runtime
-  private final List<Node> activeNodes = new ArrayList<>();
-  private int randomChoices;
+public class RRandomChoicesOfNNodesLB extends AbstractLoadBalancer {
+  // reads the NodeTable columns by handle, so sampling never dereferences a node
+  private static final IntToDoubleFunction LOAD = NodeTable::reportedLoad;
+
+  // both the registered nodes and randomChoices could change at runtime
+  private volatile int randomChoices;
+  private volatile AdaptiveRandomChoices adaptiveChoices;
+  // held by the one selecting thread that retunes, which also owns the last step
+  private final AtomicBoolean retuning = new AtomicBoolean();
+  private int lastStep;
+  private double lastImbalance;
 
   // ensure that randomChoices << activeNodes.size()
   public RRandomChoicesOfNNodesLB(final int randomChoices) {
@@ -56,112 +52,146 @@ public class RRandomChoicesOfNNodesLB implements LoadBalancer {
   }
 
   @Override
-  public Node selectNode() {
-    Node node = null;
-    if (writeLock.tryLock()) {
-      try {
-        // 0. short-circuit if just 1 node
-        if (activeNodes.size() == 1) {
-          return activeNodes.get(0);
-        }
-
-        // 1. select randomChoices number of random nodes
-        final Node[] randomNodes = new Node[randomChoices];
-        final List<Integer> selectedIndexes = new ArrayList<>(randomChoices);
-        for (int iter = 0; iter < randomChoices; iter++) {
-          // spin to get all non-unique random nodes to pick from
-          int index = randomizer.nextInt(activeNodes.size());
-          while (selectedIndexes.contains(index)) {
-            index = randomizer.nextInt(activeNodes.size());
-          }
-          selectedIndexes.add(index);
-          randomNodes[iter] = activeNodes.get(index);
-        }
-        logger.info(
-            String.format("%d random nodes: %s", randomChoices, Arrays.deepToString(randomNodes)));
-
-        // 2. sort selected random nodes by load
-        Arrays.sort(randomNodes, new Comparator<Node>() {
-          @Override
-          public int compare(Node one, Node two) {
-            return one.getLoad().compareTo(two.getLoad());
-          }
-        });
-
-        // 3. select the node with least load factor
-        node = randomNodes[0];
-        logger.info("Selected " + node);
-
-        // TODO handle #2 case of load ties
-      } finally {
-        writeLock.unlock();
-      }
-    }
-    return node;
+  protected Node select(final NodeSnapshot snapshot) {
+    final Node[] nodes = snapshot.nodes();
+    final int[] handles = snapshot.handles();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    return nodes[RandomChoices.leastCost(handles, choices(snapshot, random), LOAD, random, null)];
   }
 
-  public boolean overrideRandomChoices(final int newRandomChoices) {
-    validateRandomChoices(newRandomChoices);
-    boolean changed = false;
-    if (writeLock.tryLock()) {
-      try {
-        this.randomChoices = newRandomChoices;
-        changed = true;
-      } finally {
-        writeLock.unlock();
-      }
+  /**
+   * Excluded candidates are skipped while sampling, so R eligible nodes are still compared.
+   */
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int index = RandomChoices.leastCost(snapshot.handles(), choices(snapshot, random), LOAD,
+        random, exclusion);
+    return index < 0 ? null : snapshot.get(index);
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final Node[] nodes = snapshot.nodes();
+    final int[] handles = snapshot.handles();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int choices = choices(snapshot, random);
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = nodes[RandomChoices.leastCost(handles, choices, LOAD, random, null)];
     }
-    return changed;
+    return count;
+  }
+
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    return RandomChoices.leastCostDistinct(snapshot, count, choices(snapshot, random), LOAD, random,
+        null, out);
   }
 
+  /**
+   * The two least loaded of 2R sampled candidates, found in a single pass.
+   */
   @Override
-  public List<Node> listNodes() {
-    List<Node> nodes = Collections.emptyList();
-    if (readLock.tryLock()) {
+  protected int selectHedged(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    return RandomChoices.leastCostDistinct(snapshot, 2, choices(snapshot, random), LOAD, random,
+        exclusion, out);
+  }
+
+  /**
+   * @return the current randomChoices, first retuned about every retuneInterval selections if
+   *         adaptive
+   */
+  private int choices(final NodeSnapshot snapshot, final ThreadLocalRandom random) {
+    final AdaptiveRandomChoices adaptive = adaptiveChoices;
+    // a coin flip rather than a shared counter keeps selections free of contended writes
+    if (adaptive != null && random.nextInt(adaptive.getRetuneInterval()) == 0
+        && retuning.compareAndSet(false, true)) {
       try {
-        nodes = Collections.unmodifiableList(activeNodes);
+        retune(adaptive, snapshot, random);
       } finally {
-        readLock.unlock();
+        retuning.set(false);
       }
     }
-    return nodes;
+    return randomChoices;
   }
 
-  @Override
-  public boolean addNode(final Node node) {
-    boolean added = false;
-    if (node == null) {
-      throw new IllegalArgumentException("Cannot add a null node");
-    }
-    if (writeLock.tryLock()) {
-      try {
-        activeNodes.add(node);
-        added = true;
-        logger.info("Added " + node);
-      } finally {
-        writeLock.unlock();
+  private void retune(final AdaptiveRandomChoices adaptive, final NodeSnapshot snapshot,
+      final ThreadLocalRandom random) {
+    final int[] handles = snapshot.handles();
+    final int size = handles.length;
+    // scan small fleets, sample large ones with replacement
+    final boolean scan = size <= adaptive.getSampleSize();
+    final int samples = scan ? size : adaptive.getSampleSize();
+    int sampled = 0;
+    double sum = 0.0, sumOfSquares = 0.0, max = 0.0;
+    for (int iter = 0; iter < samples; iter++) {
+      final double load = LOAD.applyAsDouble(handles[scan ? iter : random.nextInt(size)]);
+      if (load != Double.POSITIVE_INFINITY) {
+        sampled++;
+        sum += load;
+        sumOfSquares += load * load;
+        max = Math.max(max, load);
       }
     }
-    return added;
+    final double mean = sampled == 0 ? 0.0 : sum / sampled;
+    final int step;
+    final double imbalance;
+    if (sampled < 2 || mean <= 0.0) {
+      // nothing to balance
+      step = -1;
+      imbalance = 1.0;
+    } else {
+      final double variance = Math.max(0.0, sumOfSquares / sampled - mean * mean);
+      imbalance = max / mean;
+      step = adaptive.step(Math.sqrt(variance) / mean, imbalance, lastStep, lastImbalance);
+    }
+    final int current = randomChoices;
+    final int next = adaptive.clamp(current + step, size);
+    lastStep = next - current;
+    lastImbalance = imbalance;
+    if (next != current) {
+      randomChoices = next;
+    }
   }
 
+  /**
+   * Clamp an adaptive randomChoices as soon as the fleet shrinks below it.
+   */
   @Override
-  public boolean removeNode(final Node node) {
-    boolean removed = false;
-    if (node == null) {
-      throw new IllegalArgumentException("Cannot remove a null node");
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    final AdaptiveRandomChoices adaptive = adaptiveChoices;
+    if (adaptive != null && !snapshot.isEmpty()) {
+      randomChoices = adaptive.clamp(randomChoices, snapshot.size());
     }
-    if (writeLock.tryLock()) {
-      try {
-        removed = activeNodes.remove(node);
-        if (removed) {
-          logger.info("Removed " + node);
-        }
-      } finally {
-        writeLock.unlock();
-      }
+  }
+
+  public boolean overrideRandomChoices(final int newRandomChoices) {
+    validateRandomChoices(newRandomChoices);
+    this.randomChoices = newRandomChoices;
+    return true;
+  }
+
+  public int getRandomChoices() {
+    return randomChoices;
+  }
+
+  /**
+   * Tune randomChoices at runtime to the observed load dispersion, null to keep it fixed at its
+   * current value.
+   */
+  public void setAdaptiveChoices(final AdaptiveRandomChoices adaptive) {
+    if (adaptive != null) {
+      final int nodes = listNodes().size();
+      randomChoices = adaptive.clamp(randomChoices, nodes == 0 ? Integer.MAX_VALUE : nodes);
     }
-    return removed;
+    adaptiveChoices = adaptive;
+  }
+
+  public AdaptiveRandomChoices getAdaptiveChoices() {
+    return adaptiveChoices;
   }
 
   private static void validateRandomChoices(final int randomChoices) {
@@ -0,0 +1,306 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Allocation-free "power of d choices" sampling: pick d distinct random candidates out of a node
+ * snapshot and return the one with the least cost, breaking ties at random.
+ * 
+ * Candidates are visited as an arithmetic progression modulo n from a uniformly random start with a
+ * uniformly random stride. Whenever d <= n / gcd(stride, n) the visited indexes are provably
+ * distinct, so no rejection loop and no scratch set are needed (otherwise the stride falls back to 1
+ * which is always distinct). Each candidate is individually uniform over the snapshot, and for d=2
+ * the pair is uniform over all distinct pairs. When d >= n, all nodes are scanned instead.
+ * 
+ * Candidates in an optional {@link Exclusion} are passed over: the sample is widened by the size
+ * of the exclusion and excluded candidates are skipped, so d eligible candidates are still compared
+ * whenever the snapshot has that many.
+ * 
+ * Costs that are plain {@link NodeTable} columns are better read by handle: the handle variants
+ * walk the snapshot's int handles and the dense columns without touching the nodes themselves.
+ * 
+ * @author gaurav
+ */
+final class RandomChoices {
+  // running best candidates of batches larger than a pair, reused by every call on a thread
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  private RandomChoices() {}
+
+  /**
+   * @return the index of the least-cost node among {@code choices} distinct random candidates not
+   *         in the exclusion (if any), -1 if every node is excluded
+   */
+  static int leastCost(final Node[] nodes, final int choices, final ToDoubleFunction<Node> cost,
+      final ThreadLocalRandom random, final Exclusion exclusion) {
+    final int size = nodes.length;
+    final int excluded = exclusion == null ? 0 : exclusion.size();
+    if (size == 1 && excluded == 0) {
+      return 0;
+    }
+    final int start = random.nextInt(size);
+    final int candidates = (int) Math.min((long) choices + excluded, size);
+    final int stride = stride(size, candidates, random);
+
+    int best = -1, ties = 0, compared = 0;
+    double bestCost = 0.0;
+    for (int iter = 0, index = start; iter < candidates && compared < choices; iter++) {
+      if (excluded == 0 || !exclusion.contains(nodes[index])) {
+        compared++;
+        final double candidateCost = cost.applyAsDouble(nodes[index]);
+        if (best < 0 || candidateCost < bestCost) {
+          best = index;
+          bestCost = candidateCost;
+          ties = 1;
+        } else if (candidateCost == bestCost && random.nextInt(++ties) == 0) {
+          // reservoir sampling over the tied candidates keeps every one of them equally likely
+          best = index;
+        }
+      }
+      index += stride;
+      if (index >= size) {
+        index -= size;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Sample min(n, count * choices) distinct random candidates not in the exclusion (if any) and
+   * write the count least-cost ones into out, cheapest first.
+   * 
+   * @return the number of nodes written
+   */
+  static int leastCostDistinct(final Node[] nodes, final int count, final int choices,
+      final ToDoubleFunction<Node> cost, final ThreadLocalRandom random, final Exclusion exclusion,
+      final Node[] out) {
+    final int size = nodes.length;
+    final int excluded = exclusion == null ? 0 : exclusion.size();
+    final int target = Math.min(count, size);
+    final long sampled = (long) count * choices + excluded;
+    final int candidates = sampled < size ? (int) sampled : size;
+    final int start = random.nextInt(size);
+    final int stride = stride(size, candidates, random);
+
+    if (target <= 2) {
+      // the common pair, e.g. a hedged selection, is kept in locals
+      int first = -1, second = -1;
+      double firstCost = 0.0, secondCost = 0.0;
+      for (int iter = 0, index = start; iter < candidates; iter++) {
+        if (excluded == 0 || !exclusion.contains(nodes[index])) {
+          final double candidateCost = cost.applyAsDouble(nodes[index]);
+          if (first < 0 || candidateCost < firstCost) {
+            second = first;
+            secondCost = firstCost;
+            first = index;
+            firstCost = candidateCost;
+          } else if (second < 0 || candidateCost < secondCost) {
+            second = index;
+            secondCost = candidateCost;
+          }
+        }
+        index += stride;
+        if (index >= size) {
+          index -= size;
+        }
+      }
+      return writePair(nodes, target, first, second, out);
+    }
+
+    // insertion into the running best target candidates, a batch is small
+    final double[] costs = SCRATCH.get().costs(target);
+    int selected = 0;
+    for (int iter = 0, index = start; iter < candidates; iter++) {
+      if (excluded == 0 || !exclusion.contains(nodes[index])) {
+        final double candidateCost = cost.applyAsDouble(nodes[index]);
+        if (selected < target || candidateCost < costs[target - 1]) {
+          int slot = selected < target ? selected++ : target - 1;
+          while (slot > 0 && costs[slot - 1] > candidateCost) {
+            costs[slot] = costs[slot - 1];
+            out[slot] = out[slot - 1];
+            slot--;
+          }
+          costs[slot] = candidateCost;
+          out[slot] = nodes[index];
+        }
+      }
+      index += stride;
+      if (index >= size) {
+        index -= size;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Handle variant of
+   * {@link #leastCost(Node[], int, ToDoubleFunction, ThreadLocalRandom, Exclusion)}, the cost is
+   * looked up by {@link NodeTable} handle.
+   *
+   * @return the index of the least-cost handle among {@code choices} distinct random candidates
+   *         not in the exclusion (if any), -1 if every node is excluded
+   */
+  static int leastCost(final int[] handles, final int choices, final IntToDoubleFunction cost,
+      final ThreadLocalRandom random, final Exclusion exclusion) {
+    final int size = handles.length;
+    final int excluded = exclusion == null ? 0 : exclusion.size();
+    if (size == 1 && excluded == 0) {
+      return 0;
+    }
+    final int start = random.nextInt(size);
+    final int candidates = (int) Math.min((long) choices + excluded, size);
+    final int stride = stride(size, candidates, random);
+
+    int best = -1, ties = 0, compared = 0;
+    double bestCost = 0.0;
+    for (int iter = 0, index = start; iter < candidates && compared < choices; iter++) {
+      if (excluded == 0 || !exclusion.containsHandle(handles[index])) {
+        compared++;
+        final double candidateCost = cost.applyAsDouble(handles[index]);
+        if (best < 0 || candidateCost < bestCost) {
+          best = index;
+          bestCost = candidateCost;
+          ties = 1;
+        } else if (candidateCost == bestCost && random.nextInt(++ties) == 0) {
+          best = index;
+        }
+      }
+      index += stride;
+      if (index >= size) {
+        index -= size;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Handle variant of {@link #leastCostDistinct(Node[], int, int, ToDoubleFunction,
+   * ThreadLocalRandom, Exclusion, Node[])}, the cost is looked up by {@link NodeTable} handle.
+   * 
+   * @return the number of nodes written
+   */
+  static int leastCostDistinct(final NodeSnapshot snapshot, final int count, final int choices,
+      final IntToDoubleFunction cost, final ThreadLocalRandom random, final Exclusion exclusion,
+      final Node[] out) {
+    final int[] handles = snapshot.handles();
+    final int size = handles.length;
+    final int excluded = exclusion == null ? 0 : exclusion.size();
+    final int target = Math.min(count, size);
+    final long sampled = (long) count * choices + excluded;
+    final int candidates = sampled < size ? (int) sampled : size;
+    final int start = random.nextInt(size);
+    final int stride = stride(size, candidates, random);
+
+    if (target <= 2) {
+      int first = -1, second = -1;
+      double firstCost = 0.0, secondCost = 0.0;
+      for (int iter = 0, index = start; iter < candidates; iter++) {
+        if (excluded == 0 || !exclusion.containsHandle(handles[index])) {
+          final double candidateCost = cost.applyAsDouble(handles[index]);
+          if (first < 0 || candidateCost < firstCost) {
+            second = first;
+            secondCost = firstCost;
+            first = index;
+            firstCost = candidateCost;
+          } else if (second < 0 || candidateCost < secondCost) {
+            second = index;
+            secondCost = candidateCost;
+          }
+        }
+        index += stride;
+        if (index >= size) {
+          index -= size;
+        }
+      }
+      return writePair(snapshot.nodes(), target, first, second, out);
+    }
+
+    final Scratch scratch = SCRATCH.get();
+    final double[] costs = scratch.costs(target);
+    final int[] indexes = scratch.indexes(target);
+    int selected = 0;
+    for (int iter = 0, index = start; iter < candidates; iter++) {
+      if (excluded == 0 || !exclusion.containsHandle(handles[index])) {
+        final double candidateCost = cost.applyAsDouble(handles[index]);
+        if (selected < target || candidateCost < costs[target - 1]) {
+          int slot = selected < target ? selected++ : target - 1;
+          while (slot > 0 && costs[slot - 1] > candidateCost) {
+            costs[slot] = costs[slot - 1];
+            indexes[slot] = indexes[slot - 1];
+            slot--;
+          }
+          costs[slot] = candidateCost;
+          indexes[slot] = index;
+        }
+      }
+      index += stride;
+      if (index >= size) {
+        index -= size;
+      }
+    }
+    for (int iter = 0; iter < selected; iter++) {
+      out[iter] = snapshot.get(indexes[iter]);
+    }
+    return selected;
+  }
+
+  /**
+   * Write the best and second best of a pair sample into out, as far as target and found.
+   *
+   * @return the number of nodes written
+   */
+  private static int writePair(final Node[] nodes, final int target, final int first,
+      final int second, final Node[] out) {
+    if (first < 0) {
+      return 0;
+    }
+    out[0] = nodes[first];
+    if (target < 2 || second < 0) {
+      return 1;
+    }
+    out[1] = nodes[second];
+    return 2;
+  }
+
+  /**
+   * @return a random stride that visits candidates distinct indexes modulo size, 1 for a full scan
+   */
+  private static int stride(final int size, final int candidates, final ThreadLocalRandom random) {
+    if (candidates >= size) {
+      return 1;
+    }
+    final int stride = 1 + random.nextInt(size - 1);
+    return candidates > size / gcd(stride, size) ? 1 : stride;
+  }
+
+  static int gcd(int one, int two) {
+    while (two != 0) {
+      final int remainder = one % two;
+      one = two;
+      two = remainder;
+    }
+    return one;
+  }
+
+  private static final class Scratch {
+    private double[] costs = new double[0];
+    private int[] indexes = new int[0];
+
+    private double[] costs(final int length) {
+      if (costs.length < length) {
+        costs = new double[Math.max(length, 2 * costs.length)];
+      }
+      return costs;
+    }
+
+    private int[] indexes(final int length) {
+      if (indexes.length < length) {
+        indexes = new int[Math.max(length, 2 * indexes.length)];
+      }
+      return indexes;
+    }
+  }
+
+}
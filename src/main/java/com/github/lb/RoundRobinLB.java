@@ -1,102 +1,60 @@
 package com.github.lb;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
 /**
  * A round-robin load balancer.
  * 
+ * Selection is wait-free: every call claims the next value of a cache-line padded sequence with a
+ * single fetch-and-add and maps it onto the immutable node snapshot, so there is no lock, no
+ * allocation and no logging on the hot path. Since the sequence is independent of membership, a
+ * concurrent add or remove simply re-maps the rotation onto the new snapshot; no node is skipped
+ * or selected twice within a rotation over a stable snapshot.
+ * 
  * @author gaurav
  */
-public class RoundRobinLB implements LoadBalancer {
-  private static final Logger logger = LogManager.getLogger(RoundRobinLB.class.getSimpleName());
-
-  private final ReentrantReadWriteLock superLock = new ReentrantReadWriteLock(true);
-  private final WriteLock writeLock = superLock.writeLock();
-  private final ReadLock readLock = superLock.readLock();
-
-  // ensure both are protected via single-writer principle
-  private final List<Node> activeNodes = new ArrayList<>();
-  private int nodeIndex;
+public class RoundRobinLB extends AbstractLoadBalancer {
+  private final PaddedSequence sequence = new PaddedSequence();
 
   @Override
-  public Node selectNode() {
-    Node node = null;
-    if (writeLock.tryLock()) {
-      try {
-        // 0. short-circuit if just 1 node
-        if (activeNodes.size() == 1) {
-          return activeNodes.get(0);
-        }
-
-        // 1. simply circle through the node list
-        int nextNode = nodeIndex % activeNodes.size();
-        node = activeNodes.get(nextNode);
-        logger.info("Selected " + node);
-
-        nodeIndex = nextNode + 1;
-      } finally {
-        writeLock.unlock();
-      }
+  protected Node select(final NodeSnapshot snapshot) {
+    // 0. short-circuit if just 1 node
+    final Node[] nodes = snapshot.nodes();
+    if (nodes.length == 1) {
+      return nodes[0];
     }
-    return node;
+
+    // 1. simply circle through the node list
+    return nodes[slot(sequence.getAndIncrement(), nodes.length)];
   }
 
+  /**
+   * Moves on along the rotation past excluded nodes.
+   */
   @Override
-  public List<Node> listNodes() {
-    List<Node> nodes = Collections.emptyList();
-    if (readLock.tryLock()) {
-      try {
-        nodes = Collections.unmodifiableList(activeNodes);
-      } finally {
-        readLock.unlock();
-      }
-    }
-    return nodes;
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    return firstNotExcluded(snapshot, exclusion,
+        slot(sequence.getAndIncrement(), snapshot.size()));
   }
 
   @Override
-  public boolean addNode(Node node) {
-    boolean added = false;
-    if (node == null) {
-      throw new IllegalArgumentException("Cannot add a null node");
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    // claim the whole batch with a single cursor advance
+    final Node[] nodes = snapshot.nodes();
+    final long start = sequence.getAndAdd(count);
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = nodes[slot(start + iter, nodes.length)];
     }
-    if (writeLock.tryLock()) {
-      try {
-        activeNodes.add(node);
-        added = true;
-        logger.info("Added " + node);
-      } finally {
-        writeLock.unlock();
-      }
-    }
-    return added;
+    return count;
   }
 
   @Override
-  public boolean removeNode(Node node) {
-    boolean removed = false;
-    if (node == null) {
-      throw new IllegalArgumentException("Cannot remove a null node");
-    }
-    if (writeLock.tryLock()) {
-      try {
-        removed = activeNodes.remove(node);
-        if (removed) {
-          logger.info("Removed " + node);
-        }
-      } finally {
-        writeLock.unlock();
-      }
-    }
-    return removed;
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    // consecutive slots of a rotation are distinct
+    return select(snapshot, Math.min(count, snapshot.size()), out);
+  }
+
+  static int slot(final long sequence, final int size) {
+    // mask the sign bit so the rotation survives the (theoretical) sequence wrap-around
+    return (int) ((sequence & Long.MAX_VALUE) % size);
   }
 
   @Override
@@ -0,0 +1,32 @@
+package com.github.lb;
+
+/**
+ * Thrown to fail fast when every selectable node reached its concurrency limit, rather than handing
+ * out a node that would only queue the request. Callers are expected to shed or retry the request
+ * later. The exception carries no stack trace, so that failing fast stays cheap under overload.
+ *
+ * @author gaurav
+ */
+public final class SaturatedException extends IllegalStateException {
+  private static final long serialVersionUID = 1L;
+
+  private final int nodes;
+
+  public SaturatedException(final int nodes) {
+    super("All " + nodes + " selectable nodes are saturated");
+    this.nodes = nodes;
+  }
+
+  /**
+   * @return the number of selectable nodes, all saturated
+   */
+  public int getNodes() {
+    return nodes;
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+
+}
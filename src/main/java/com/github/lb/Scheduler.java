@@ -0,0 +1,46 @@
+package com.github.lb;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The single daemon thread that runs delayed work for all load balancers, e.g. re-admitting ejected
+ * nodes. Nothing here ever runs on a selection path, and no per-node timers are needed.
+ *
+ * @author gaurav
+ */
+final class Scheduler {
+  private static final Logger logger = LogManager.getLogger(Scheduler.class.getSimpleName());
+
+  private Scheduler() {}
+
+  // started lazily on first use
+  private static final class Holder {
+    static final ScheduledThreadPoolExecutor EXECUTOR = newExecutor();
+  }
+
+  static ScheduledFuture<?> schedule(final Runnable task, final long delayNanos) {
+    return Holder.EXECUTOR.schedule(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException problem) {
+        logger.error("Scheduled task failed", problem);
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static ScheduledThreadPoolExecutor newExecutor() {
+    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+      final Thread thread = new Thread(task, "lb-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+}
@@ -0,0 +1,38 @@
+package com.github.lb;
+
+/**
+ * A hook notified of every selection made by a load balancer. Implementations are invoked on the
+ * selecting thread, so they must be cheap and thread-safe; see {@link SelectionMetrics} for the
+ * stock implementation.
+ * 
+ * @author gaurav
+ */
+public interface SelectionListener {
+  /**
+   * Default listener that ignores everything. Load balancers skip timing entirely while it is
+   * installed.
+   */
+  SelectionListener NOOP = new SelectionListener() {};
+
+  /**
+   * A node got selected, taking latencyNanos to do so.
+   */
+  default void onSelection(final Node node, final long latencyNanos) {}
+
+  /**
+   * A selection found no nodes to select from.
+   */
+  default void onEmptySelection() {}
+
+  /**
+   * A selection found nodes but could not select any of them.
+   */
+  default void onFailedSelection() {}
+
+  /**
+   * The membership of the load balancer changed, invoked on the mutating thread after the
+   * snapshot got published.
+   */
+  default void onMembershipChange(final NodeSnapshot snapshot) {}
+
+}
@@ -0,0 +1,81 @@
+package com.github.lb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link SelectionListener} that records selection counts per node, empty and failed selections
+ * in striped counters and selection latency in a {@link LatencyHistogram}. Recording never blocks;
+ * {@link #snapshot()} is meant to be polled by reporters, not called per selection.
+ * 
+ * Counters are kept by node id. Once a node is removed, its count is folded into a single total of
+ * removed nodes, so totals stay monotonic while the per-node counters only cover members.
+ * 
+ * @author gaurav
+ */
+public class SelectionMetrics implements SelectionListener {
+  private final ConcurrentHashMap<String, LongAdder> nodeSelections = new ConcurrentHashMap<>();
+  private final LongAdder removedSelections = new LongAdder();
+  private final LongAdder selections = new LongAdder();
+  private final LongAdder emptySelections = new LongAdder();
+  private final LongAdder failedSelections = new LongAdder();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  @Override
+  public void onSelection(final Node node, final long latencyNanos) {
+    LongAdder counter = nodeSelections.get(node.getId());
+    if (counter == null) {
+      counter = nodeSelections.computeIfAbsent(node.getId(), key -> new LongAdder());
+    }
+    counter.increment();
+    selections.increment();
+    latencies.record(latencyNanos);
+  }
+
+  @Override
+  public void onEmptySelection() {
+    emptySelections.increment();
+  }
+
+  @Override
+  public void onFailedSelection() {
+    failedSelections.increment();
+  }
+
+  /**
+   * Fold the counters of nodes that are no longer members into the removed total, including ones
+   * re-created by selections that raced an earlier removal.
+   */
+  @Override
+  public void onMembershipChange(final NodeSnapshot snapshot) {
+    final Iterator<Map.Entry<String, LongAdder>> entries = nodeSelections.entrySet().iterator();
+    while (entries.hasNext()) {
+      final Map.Entry<String, LongAdder> entry = entries.next();
+      if (snapshot.getMember(entry.getKey()) == null) {
+        entries.remove();
+        removedSelections.add(entry.getValue().sum());
+      }
+    }
+  }
+
+  public LoadBalancerStats snapshot() {
+    final Map<String, Long> perNode = new HashMap<>(nodeSelections.size() * 2);
+    for (final Map.Entry<String, LongAdder> entry : nodeSelections.entrySet()) {
+      perNode.put(entry.getKey(), entry.getValue().sum());
+    }
+    final long[] counts = latencies.counts();
+    long total = 0L;
+    for (final long count : counts) {
+      total += count;
+    }
+    return new LoadBalancerStats(selections.sum(), emptySelections.sum(), failedSelections.sum(),
+        perNode, removedSelections.sum(), LatencyHistogram.valueAtPercentile(counts, total, 50.0),
+        LatencyHistogram.valueAtPercentile(counts, total, 99.0),
+        LatencyHistogram.valueAtPercentile(counts, total, 99.9),
+        LatencyHistogram.valueAtPercentile(counts, total, 100.0));
+  }
+
+}
@@ -0,0 +1,83 @@
+package com.github.lb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A slow-start ramp for nodes joining a load balancer, see
+ * {@link LoadBalancer#setSlowStart(SlowStart)}. For a window after a node is added (or re-admitted
+ * after an outlier ejection), a selection landing on it is only admitted with probability
+ *
+ * <pre>
+ * factor = floor + (1 - floor) * (elapsed / window) ^ (1 / aggression)
+ * </pre>
+ *
+ * relative to the factor of the longest joined node, and otherwise redrawn. Its effective weight
+ * (or its share of the load-based strategies' picks) therefore ramps up from floor to full, while
+ * nodes that joined together, e.g. at startup, are not ramped against each other. An aggression of
+ * 1 ramps linearly, larger values front-load the ramp. The factor is computed lazily from the join
+ * time recorded in the snapshot, no timers are involved.
+ *
+ * @author gaurav
+ */
+public final class SlowStart {
+  public static final double DEFAULT_FLOOR = 0.1;
+  public static final double DEFAULT_AGGRESSION = 1.0;
+
+  private final long windowNanos;
+  private final double floor;
+  private final double exponent;
+
+  public SlowStart(final long window, final TimeUnit unit) {
+    this(window, unit, DEFAULT_FLOOR, DEFAULT_AGGRESSION);
+  }
+
+  public SlowStart(final long window, final TimeUnit unit, final double floor,
+      final double aggression) {
+    if (window <= 0L) {
+      throw new IllegalArgumentException("Cannot use a slow start window <= 0");
+    }
+    if (!(floor > 0.0 && floor <= 1.0)) {
+      throw new IllegalArgumentException("Cannot use a floor outside (0, 1]");
+    }
+    if (!(aggression >= 1.0)) {
+      throw new IllegalArgumentException("Cannot use an aggression < 1");
+    }
+    this.windowNanos = unit.toNanos(window);
+    this.floor = floor;
+    this.exponent = 1.0 / aggression;
+  }
+
+  /**
+   * @return the admission factor of a node that joined elapsedNanos ago, 1.0 after the window
+   */
+  public double factor(final long elapsedNanos) {
+    if (elapsedNanos >= windowNanos) {
+      return 1.0;
+    }
+    final double progress = Math.max(0L, elapsedNanos) / (double) windowNanos;
+    return floor + (1.0 - floor) * (exponent == 1.0 ? progress : Math.pow(progress, exponent));
+  }
+
+  public long getWindowNanos() {
+    return windowNanos;
+  }
+
+  public double getFloor() {
+    return floor;
+  }
+
+  public double getAggression() {
+    return 1.0 / exponent;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("SlowStart[windowNanos:").append(windowNanos);
+    builder.append(", floor:").append(floor);
+    builder.append(", aggression:").append(getAggression());
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,210 @@
+package com.github.lb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An interleaved ("smooth") weighted round-robin schedule over a node snapshot.
+ * 
+ * Every round, each node's current weight is bumped by its effective weight and the node with the
+ * highest current weight is picked and knocked down by the total weight. This spreads picks evenly
+ * instead of draining one node at a time: weights 5/1/1 yield A-A-B-A-C-A-A rather than
+ * A-A-A-A-A-B-C.
+ * 
+ * Weights are reduced by their gcd and, when the resulting cycle is short enough, the full cycle is
+ * precomputed at build time so that a pick is a single fetch-and-add plus an array read. Otherwise
+ * the O(n) step above is run ahead in windows of picks: a pick is still a fetch-and-add plus an
+ * array read, and whichever thread runs past the end of the window computes the next one. Picks
+ * never wait on that thread; picks made meanwhile are served from the current window again, so the
+ * proportions stay exact per cycle only as long as windows are computed ahead of demand. Two window
+ * buffers take turns, so running ahead allocates nothing; a thread descheduled for a whole window
+ * may read from a buffer that is being refilled, which still yields a node of this schedule. If all
+ * weights are zero, nodes are treated as equally weighted.
+ * 
+ * @author gaurav
+ */
+final class SmoothWeightedSchedule {
+  // upper bounds on the precomputed cycle length and on the work spent precomputing it
+  static final int MAX_SCHEDULE_LENGTH = 1 << 16;
+  static final long MAX_SCHEDULE_WORK = 1L << 24;
+  // bounds on the length of a window of picks and on the work spent computing one
+  static final int MIN_WINDOW_LENGTH = 64;
+  static final int MAX_WINDOW_LENGTH = 4096;
+  static final long MAX_WINDOW_WORK = 1L << 20;
+
+  private final NodeSnapshot snapshot;
+  private final int[] effectiveWeights;
+  // only touched while building and by the one thread holding extending
+  private final long[] currentWeights;
+  private final long totalWeight;
+
+  // precomputed cycle of node indexes or null if picks are computed on the fly
+  private final int[] schedule;
+  private final PaddedSequence cursor = new PaddedSequence();
+  // picks computed ahead if the cycle is not precomputed, null otherwise
+  private volatile Window window;
+  // the buffer refilled next, only touched by the one thread holding extending
+  private Window spare;
+  private final AtomicBoolean extending = new AtomicBoolean();
+
+  SmoothWeightedSchedule(final NodeSnapshot snapshot) {
+    this.snapshot = snapshot;
+    final int[] handles = snapshot.handles();
+    effectiveWeights = new int[handles.length];
+    currentWeights = new long[handles.length];
+    int gcd = 0;
+    for (int iter = 0; iter < handles.length; iter++) {
+      effectiveWeights[iter] = NodeTable.weight(handles[iter]);
+      gcd = RandomChoices.gcd(gcd, effectiveWeights[iter]);
+    }
+    long total = 0L;
+    for (int iter = 0; iter < handles.length; iter++) {
+      // all weights zero (gcd == 0) degrades to plain round-robin
+      effectiveWeights[iter] = gcd == 0 ? 1 : effectiveWeights[iter] / gcd;
+      total += effectiveWeights[iter];
+    }
+    totalWeight = total;
+
+    if (total > 0 && total <= MAX_SCHEDULE_LENGTH && total * handles.length <= MAX_SCHEDULE_WORK) {
+      schedule = new int[(int) total];
+      for (int iter = 0; iter < schedule.length; iter++) {
+        schedule[iter] = step();
+      }
+    } else {
+      schedule = null;
+      if (total > 0) {
+        final long length = MAX_WINDOW_WORK / handles.length;
+        final int windowLength =
+            (int) Math.max(MIN_WINDOW_LENGTH, Math.min(MAX_WINDOW_LENGTH, length));
+        window = fill(new Window(windowLength), 0L);
+        spare = new Window(windowLength);
+      }
+    }
+  }
+
+  /**
+   * @return the index of the next node in the snapshot this schedule was built from
+   */
+  int next() {
+    if (schedule != null) {
+      return schedule[RoundRobinLB.slot(cursor.getAndIncrement(), schedule.length)];
+    }
+    final long position = cursor.getAndIncrement();
+    Window current = window;
+    long first = current.first;
+    while (position >= first + current.picks.length) {
+      if (!extending.compareAndSet(false, true)) {
+        // another thread is computing the next window, do not wait for it
+        return current.picks[RoundRobinLB.slot(position, current.picks.length)];
+      }
+      try {
+        if (window == current) {
+          final Window next = fill(spare, first + current.picks.length);
+          spare = current;
+          window = next;
+        }
+      } finally {
+        extending.set(false);
+      }
+      current = window;
+      first = current.first;
+    }
+    final long offset = position - first;
+    // a thread descheduled for a whole window lost its slot, any pick of the window will do
+    return current.picks[offset >= 0 ? (int) offset
+        : RoundRobinLB.slot(position, current.picks.length)];
+  }
+
+  /**
+   * Write the next count nodes of the schedule into out with a single advance of the schedule. If
+   * distinct, repeats are skipped and fewer nodes are written if fewer than count nodes carry
+   * weight.
+   * 
+   * @return the number of nodes written
+   */
+  int next(final Node[] nodes, final int count, final Node[] out, final boolean distinct) {
+    if (schedule != null) {
+      final long start = cursor.getAndAdd(count);
+      if (!distinct) {
+        for (int iter = 0; iter < count; iter++) {
+          out[iter] = nodes[schedule[RoundRobinLB.slot(start + iter, schedule.length)]];
+        }
+        return count;
+      }
+      // one full cycle visits every weighted node
+      int selected = 0;
+      for (int iter = 0; iter < schedule.length && selected < count; iter++) {
+        final Node node = nodes[schedule[RoundRobinLB.slot(start + iter, schedule.length)]];
+        if (!AbstractLoadBalancer.contains(out, selected, node)) {
+          out[selected++] = node;
+        }
+      }
+      return selected;
+    }
+    if (!distinct) {
+      for (int iter = 0; iter < count; iter++) {
+        out[iter] = nodes[next()];
+      }
+      return count;
+    }
+    int selected = 0;
+    for (long iter = 0; iter < totalWeight && selected < count; iter++) {
+      final Node node = nodes[next()];
+      if (!AbstractLoadBalancer.contains(out, selected, node)) {
+        out[selected++] = node;
+      }
+    }
+    return selected;
+  }
+
+  NodeSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  boolean isPrecomputed() {
+    return schedule != null;
+  }
+
+  long getTotalWeight() {
+    return totalWeight;
+  }
+
+  /**
+   * Refill the given buffer with the next picks, starting at position first of the schedule.
+   * 
+   * @return the refilled buffer
+   */
+  private Window fill(final Window buffer, final long first) {
+    final int[] picks = buffer.picks;
+    for (int iter = 0; iter < picks.length; iter++) {
+      picks[iter] = step();
+    }
+    buffer.first = first;
+    return buffer;
+  }
+
+  private int step() {
+    int best = -1;
+    for (int iter = 0; iter < effectiveWeights.length; iter++) {
+      if (effectiveWeights[iter] == 0) {
+        continue;
+      }
+      currentWeights[iter] += effectiveWeights[iter];
+      if (best < 0 || currentWeights[iter] > currentWeights[best]) {
+        best = iter;
+      }
+    }
+    currentWeights[best] -= totalWeight;
+    return best;
+  }
+
+  private static final class Window {
+    // position of the first pick in the schedule, only ever moves forward as the window is refilled
+    private volatile long first;
+    private final int[] picks;
+
+    private Window(final int length) {
+      this.picks = new int[length];
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+package com.github.lb;
+
+import java.util.function.Function;
+
+/**
+ * Holds a selection table derived from the latest {@link NodeSnapshot} of a registry, e.g. a
+ * weighted schedule or an alias table. The table is rebuilt by {@link #refresh()} on the mutating
+ * thread after a membership change, or on the scheduler thread after weight changes of members,
+ * and published with a single volatile write, so a lookup is one volatile read and selections never
+ * build anything.
+ *
+ * Tables refer to the snapshot they were built from and selections resolve table indexes against
+ * that snapshot. A selection racing a membership change may still get the previous table, just as
+ * if it had started a moment earlier.
+ *
+ * @author gaurav
+ */
+final class SnapshotTableCache<T> {
+  private final Object refreshLock = new Object();
+  private final NodeRegistry registry;
+  private final Function<NodeSnapshot, T> tableBuilder;
+  private volatile Entry<T> entry;
+
+  SnapshotTableCache(final NodeRegistry registry, final Function<NodeSnapshot, T> tableBuilder) {
+    this.registry = registry;
+    this.tableBuilder = tableBuilder;
+    this.entry = new Entry<>(NodeSnapshot.EMPTY, registry.getWeightGeneration(),
+        tableBuilder.apply(NodeSnapshot.EMPTY));
+  }
+
+  /**
+   * @return the latest published table
+   */
+  T get() {
+    return entry.table;
+  }
+
+  /**
+   * Rebuild the table unless it is already up to date with the registry's latest snapshot and
+   * weight generation.
+   */
+  void refresh() {
+    synchronized (refreshLock) {
+      // read the generation before building so that a concurrent weight change rebuilds again
+      final long weightGeneration = registry.getWeightGeneration();
+      final NodeSnapshot latest = registry.snapshot();
+      final Entry<T> current = entry;
+      if (current.snapshot == latest && current.weightGeneration == weightGeneration) {
+        return;
+      }
+      entry = new Entry<>(latest, weightGeneration, tableBuilder.apply(latest));
+    }
+  }
+
+  private static final class Entry<T> {
+    private final NodeSnapshot snapshot;
+    private final long weightGeneration;
+    private final T table;
+
+    private Entry(final NodeSnapshot snapshot, final long weightGeneration, final T table) {
+      this.snapshot = snapshot;
+      this.weightGeneration = weightGeneration;
+      this.table = table;
+    }
+  }
+
+}
@@ -0,0 +1,253 @@
+package com.github.lb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deterministic subsetting (aperture): each of clientCount clients balances over a small, stable
+ * slice of the fleet instead of all of it, so connection counts stay at subsetSize x clients rather
+ * than nodes x clients and a membership change only touches the clients whose slice it falls into.
+ * The in-subset choice is delegated to any other strategy.
+ *
+ * Nodes are ranked by the hash of their id, which keeps their relative order stable across
+ * membership changes, and the client with clientId takes subsetSize consecutive ranks starting at
+ *
+ * <pre>
+ * floor(clientId * nodes / clientCount)
+ * </pre>
+ *
+ * wrapping around. Client windows are spaced evenly, so every node is covered by the same number of
+ * clients (within one), and adding or removing a node slides each window by at most one rank.
+ *
+ * The subset is fixed unless an adaptive range is given: the subset then grows as soon as this
+ * client's in-flight requests exceed targetInFlightPerNode per subset node and shrinks (at most
+ * once per second) once half of the subset would do. In-flight counts come from {@link Lease}s.
+ * Acquiring and releasing a lease only checks these thresholds: the resize itself is handed to
+ * the scheduler thread, at most one at a time, so requests never wait for the delegate to be
+ * reconciled.
+ *
+ * @author gaurav
+ */
+public class SubsettingLB extends AbstractLoadBalancer {
+  private static final long SHRINK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final LoadBalancer delegate;
+  private final int clientId;
+  private final int clientCount;
+  private final int minSubsetSize;
+  private final int maxSubsetSize;
+  private final int targetInFlightPerNode;
+  private final AtomicLong inFlight = new AtomicLong();
+  private final AtomicLong lastShrinkNanos = new AtomicLong(System.nanoTime());
+  private final AtomicBoolean resizePending = new AtomicBoolean();
+  private final Object subsetLock = new Object();
+  // all selectable nodes ranked by id hash, published on membership changes
+  private volatile Node[] ranked = new Node[0];
+  private volatile int subsetSize;
+
+  public SubsettingLB(final LoadBalancer delegate, final int clientId, final int clientCount,
+      final int subsetSize) {
+    this(delegate, clientId, clientCount, subsetSize, subsetSize, 0);
+  }
+
+  /**
+   * @param targetInFlightPerNode in-flight requests per subset node above which the subset grows,
+   *        0 for a fixed subset of minSubsetSize
+   */
+  public SubsettingLB(final LoadBalancer delegate, final int clientId, final int clientCount,
+      final int minSubsetSize, final int maxSubsetSize, final int targetInFlightPerNode) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Cannot use a null delegate");
+    }
+    if (clientCount < 1 || clientId < 0 || clientId >= clientCount) {
+      throw new IllegalArgumentException("Cannot use a clientId outside 0..clientCount-1");
+    }
+    if (minSubsetSize < 1 || maxSubsetSize < minSubsetSize) {
+      throw new IllegalArgumentException("Cannot use subset sizes outside 1 <= min <= max");
+    }
+    if (targetInFlightPerNode < 0) {
+      throw new IllegalArgumentException("Cannot use a targetInFlightPerNode < 0");
+    }
+    this.delegate = delegate;
+    this.clientId = clientId;
+    this.clientCount = clientCount;
+    this.minSubsetSize = minSubsetSize;
+    this.maxSubsetSize = maxSubsetSize;
+    this.targetInFlightPerNode = targetInFlightPerNode;
+    this.subsetSize = minSubsetSize;
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    final Node node = delegate.selectNode();
+    // only while a membership change is being reconciled
+    return node != null ? node
+        : snapshot.get(ThreadLocalRandom.current().nextInt(snapshot.size()));
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash) {
+    final Node node = delegate.selectNode(keyHash);
+    return node != null ? node
+        : snapshot.get((int) Long.remainderUnsigned(keyHash, snapshot.size()));
+  }
+
+  /**
+   * Exclusions apply within the subset, and spill over to the rest of the fleet only once every
+   * subset node is excluded, e.g. by retries that tried them all.
+   */
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    final Node node = delegate.selectNode(exclusion);
+    return node != null ? node
+        : firstNotExcluded(snapshot, exclusion,
+            ThreadLocalRandom.current().nextInt(snapshot.size()));
+  }
+
+  @Override
+  protected int selectHedged(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out) {
+    return delegate.selectHedged(exclusion, out);
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final int selected = delegate.selectNodes(count, out);
+    return selected > 0 ? selected : super.select(snapshot, count, out);
+  }
+
+  /**
+   * Distinct within the subset, so never more than the subset size.
+   */
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final int selected = delegate.selectDistinctNodes(count, out);
+    return selected > 0 ? selected : super.selectDistinct(snapshot, count, out);
+  }
+
+  @Override
+  protected void onAcquire(final Node node) {
+    super.onAcquire(node);
+    final long current = inFlight.incrementAndGet();
+    final int size = subsetSize;
+    if (targetInFlightPerNode > 0 && size < maxSubsetSize
+        && current > (long) size * targetInFlightPerNode) {
+      requestResize();
+    }
+  }
+
+  @Override
+  protected void onRelease(final Node node, final long elapsedNanos) {
+    super.onRelease(node, elapsedNanos);
+    final long current = inFlight.decrementAndGet();
+    final int size = subsetSize;
+    if (targetInFlightPerNode > 0 && size > minSubsetSize
+        && current * 2 <= (long) size * targetInFlightPerNode
+        && System.nanoTime() - lastShrinkNanos.get() >= SHRINK_INTERVAL_NANOS) {
+      requestResize();
+    }
+  }
+
+  private void requestResize() {
+    // one resize at a time, later threshold crossings are picked up by the pending one
+    if (resizePending.compareAndSet(false, true)) {
+      Scheduler.schedule(this::resize, 0L);
+    }
+  }
+
+  // runs on the scheduler thread
+  private void resize() {
+    // cleared first so that a threshold crossed during the resize schedules another one
+    resizePending.set(false);
+    final long current = inFlight.get();
+    final long wanted = (current + targetInFlightPerNode - 1) / targetInFlightPerNode;
+    final int size = (int) Math.max(minSubsetSize, Math.min(maxSubsetSize, wanted));
+    synchronized (subsetLock) {
+      if (size == subsetSize) {
+        return;
+      }
+      if (size < subsetSize) {
+        final long now = System.nanoTime();
+        if (now - lastShrinkNanos.get() < SHRINK_INTERVAL_NANOS) {
+          return;
+        }
+        lastShrinkNanos.set(now);
+      }
+      subsetSize = size;
+      reconcile(delegate, subset(ranked, size));
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Resized subset to " + size + " for " + current + " in flight");
+    }
+  }
+
+  @Override
+  protected void onResponse(final Node node, final long latencyNanos, final boolean success) {
+    delegate.recordResponse(node, latencyNanos, success);
+  }
+
+  /**
+   * Re-rank the selectable nodes and hand the resulting subset to the delegate.
+   */
+  @Override
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    synchronized (subsetLock) {
+      final Node[] nodes = registry.snapshot().nodes();
+      final long[] hashes = new long[nodes.length];
+      final int[] indexes = new int[nodes.length];
+      for (int iter = 0; iter < nodes.length; iter++) {
+        hashes[iter] = Hashing.hash64(nodes[iter].getId());
+        indexes[iter] = iter;
+      }
+      Hashing.sortParallel(hashes, indexes, 0, nodes.length);
+      final Node[] next = new Node[nodes.length];
+      for (int iter = 0; iter < nodes.length; iter++) {
+        next[iter] = nodes[indexes[iter]];
+      }
+      ranked = next;
+      reconcile(delegate, subset(next, subsetSize));
+    }
+  }
+
+  private List<Node> subset(final Node[] nodes, final int size) {
+    final int count = Math.min(size, nodes.length);
+    final List<Node> subset = new ArrayList<>(count);
+    if (count == 0) {
+      return subset;
+    }
+    final int start = (int) ((long) clientId * nodes.length / clientCount);
+    for (int iter = 0; iter < count; iter++) {
+      subset.add(nodes[(start + iter) % nodes.length]);
+    }
+    return subset;
+  }
+
+  /**
+   * @return the nodes this client currently balances over
+   */
+  public List<Node> getSubset() {
+    return delegate.listNodes();
+  }
+
+  public int getSubsetSize() {
+    return subsetSize;
+  }
+
+  public int getClientId() {
+    return clientId;
+  }
+
+  public int getClientCount() {
+    return clientCount;
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.SUBSETTING;
+  }
+
+}
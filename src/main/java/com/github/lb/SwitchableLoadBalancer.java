@@ -0,0 +1,298 @@
+package com.github.lb;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load balancer whose strategy, and the parameters it was built with, can be swapped at runtime
+ * without a cold restart of the routing state. {@link #switchTo(LoadBalancer)} hands the current
+ * membership, selection listener (and so the selection stats), outlier detector, slow start and
+ * concurrency limits over to the next balancer and then publishes it with a single volatile write.
+ * Selections never wait for a switch: they keep going to the previous balancer until the next one
+ * is published. Per-node state (load, weight, in-flight counts and adapted limits) lives with the
+ * nodes themselves, so it carries over as is.
+ *
+ * Membership changes and switches are serialized with each other. Leases acquired before a switch
+ * are released against the balancer that handed them out. Nodes ejected by the previous balancer
+ * stay ejected under the next one until their re-admission is due, and strategy state kept per
+ * node outside the node table, e.g. the latency averages of {@link PeakEwmaLB}, is carried over
+ * between balancers of the same strategy. A next balancer not built on
+ * {@link AbstractLoadBalancer} gets the ejected nodes re-admitted instead.
+ *
+ * @author gaurav
+ */
+public final class SwitchableLoadBalancer implements LoadBalancer {
+  private final Object switchLock = new Object();
+  private volatile LoadBalancer current;
+  // settings are kept here to be applied to every next balancer
+  private SelectionListener selectionListener = SelectionListener.NOOP;
+  private OutlierDetector outlierDetector;
+  private SlowStart slowStart;
+  private AdaptiveConcurrencyLimit concurrencyLimit;
+
+  public SwitchableLoadBalancer(final LBStrategy strategy) {
+    this(LoadBalancerFactory.newLoadBalancer(strategy));
+  }
+
+  public SwitchableLoadBalancer(final LoadBalancer initial) {
+    validate(initial);
+    current = initial;
+  }
+
+  /**
+   * Switch to a new load balancer for the given strategy with default parameters.
+   *
+   * @return the previous load balancer
+   */
+  public LoadBalancer switchTo(final LBStrategy strategy) {
+    return switchTo(LoadBalancerFactory.newLoadBalancer(strategy));
+  }
+
+  /**
+   * Carry all nodes and settings over to the given empty load balancer, e.g. one built with tuned
+   * parameters, and route all further selections to it.
+   *
+   * @return the previous load balancer
+   */
+  public LoadBalancer switchTo(final LoadBalancer next) {
+    validate(next);
+    synchronized (switchLock) {
+      final LoadBalancer previous = current;
+      if (next == previous) {
+        return previous;
+      }
+      if (!next.listNodes().isEmpty()) {
+        throw new IllegalArgumentException("Cannot switch to a load balancer with nodes");
+      }
+      next.setSelectionListener(selectionListener);
+      next.setSlowStart(slowStart);
+      next.setConcurrencyLimit(concurrencyLimit);
+      next.addNodes(previous.listNodes());
+      next.setOutlierDetector(outlierDetector);
+      takeOverEjections(next);
+      if (next instanceof AbstractLoadBalancer) {
+        ((AbstractLoadBalancer) next).onTakeOver(previous);
+      }
+      current = next;
+      // the previous balancer stops ejecting and re-admitting, and whatever it ejected meanwhile
+      // is taken over as well
+      previous.setOutlierDetector(null);
+      takeOverEjections(next);
+      return previous;
+    }
+  }
+
+  private void takeOverEjections(final LoadBalancer next) {
+    final OutlierDetector detector = outlierDetector;
+    if (detector == null) {
+      return;
+    }
+    if (next instanceof AbstractLoadBalancer) {
+      ((AbstractLoadBalancer) next).adoptEjections();
+      return;
+    }
+    // nothing would re-admit them, so they start over as healthy
+    final long now = System.nanoTime();
+    for (final Node node : next.listNodes()) {
+      if (detector.isEjected(node)) {
+        detector.onReadmitted(node, now);
+      }
+    }
+  }
+
+  private void validate(final LoadBalancer loadBalancer) {
+    if (loadBalancer == null || loadBalancer == this) {
+      throw new IllegalArgumentException("Cannot switch to a null or to this load balancer");
+    }
+  }
+
+  /**
+   * @return the load balancer currently selecting nodes
+   */
+  public LoadBalancer getCurrent() {
+    return current;
+  }
+
+  @Override
+  public Node selectNode() {
+    return current.selectNode();
+  }
+
+  @Override
+  public Node selectNode(final CharSequence key) {
+    return current.selectNode(key);
+  }
+
+  @Override
+  public Node selectNode(final long key) {
+    return current.selectNode(key);
+  }
+
+  @Override
+  public Node selectNode(final Exclusion exclusion) {
+    return current.selectNode(exclusion);
+  }
+
+  @Override
+  public Node selectNode(final CharSequence key, final Exclusion exclusion) {
+    return current.selectNode(key, exclusion);
+  }
+
+  @Override
+  public int selectHedged(final Exclusion exclusion, final Node[] out) {
+    return current.selectHedged(exclusion, out);
+  }
+
+  /**
+   * Waiters queued before a switch are served by the previous load balancer.
+   */
+  @Override
+  public CompletableFuture<Node> selectNodeAsync() {
+    return current.selectNodeAsync();
+  }
+
+  @Override
+  public CompletableFuture<Node> selectNodeAsync(final long timeout, final TimeUnit unit) {
+    return current.selectNodeAsync(timeout, unit);
+  }
+
+  @Override
+  public CompletableFuture<Lease> leaseAsync() {
+    return current.leaseAsync();
+  }
+
+  @Override
+  public CompletableFuture<Lease> leaseAsync(final long timeout, final TimeUnit unit) {
+    return current.leaseAsync(timeout, unit);
+  }
+
+  @Override
+  public int selectNodes(final int count, final Node[] out) {
+    return current.selectNodes(count, out);
+  }
+
+  @Override
+  public int selectDistinctNodes(final int count, final Node[] out) {
+    return current.selectDistinctNodes(count, out);
+  }
+
+  @Override
+  public Lease lease() {
+    return current.lease();
+  }
+
+  @Override
+  public Lease lease(final CharSequence key) {
+    return current.lease(key);
+  }
+
+  @Override
+  public Lease lease(final long key) {
+    return current.lease(key);
+  }
+
+  @Override
+  public void recordResponse(final Node node, final long latencyNanos, final boolean success) {
+    current.recordResponse(node, latencyNanos, success);
+  }
+
+  @Override
+  public List<Node> listNodes() {
+    return current.listNodes();
+  }
+
+  @Override
+  public Node getNode(final String id) {
+    return current.getNode(id);
+  }
+
+  @Override
+  public boolean addNode(final Node node) {
+    synchronized (switchLock) {
+      return current.addNode(node);
+    }
+  }
+
+  @Override
+  public int addNodes(final Collection<? extends Node> nodes) {
+    synchronized (switchLock) {
+      return current.addNodes(nodes);
+    }
+  }
+
+  @Override
+  public boolean removeNode(final Node node) {
+    synchronized (switchLock) {
+      return current.removeNode(node);
+    }
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return current.getStrategy();
+  }
+
+  @Override
+  public void setSelectionListener(final SelectionListener listener) {
+    synchronized (switchLock) {
+      current.setSelectionListener(listener);
+      selectionListener = listener;
+    }
+  }
+
+  @Override
+  public LoadBalancerStats getStats() {
+    return current.getStats();
+  }
+
+  @Override
+  public void setOutlierDetector(final OutlierDetector detector) {
+    synchronized (switchLock) {
+      current.setOutlierDetector(detector);
+      outlierDetector = detector;
+    }
+  }
+
+  @Override
+  public OutlierDetector getOutlierDetector() {
+    return current.getOutlierDetector();
+  }
+
+  @Override
+  public void setSlowStart(final SlowStart slowStart) {
+    synchronized (switchLock) {
+      current.setSlowStart(slowStart);
+      this.slowStart = slowStart;
+    }
+  }
+
+  @Override
+  public SlowStart getSlowStart() {
+    return current.getSlowStart();
+  }
+
+  @Override
+  public void setConcurrencyLimit(final AdaptiveConcurrencyLimit limit) {
+    synchronized (switchLock) {
+      current.setConcurrencyLimit(limit);
+      concurrencyLimit = limit;
+    }
+  }
+
+  @Override
+  public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+    return current.getConcurrencyLimit();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("SwitchableLoadBalancer[strategy:").append(current.getStrategy());
+    builder.append(", nodes:").append(current.listNodes().size());
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -6,7 +6,7 @@ package com.github.lb;
  * @author gaurav
  */
 public class Weight implements Comparable<Weight> {
-  private Integer weightValue = 0;
+  private final int weightValue;
 
   public Weight(final Integer weightValue) {
     if (weightValue == null || weightValue < 0) {
@@ -17,7 +17,7 @@ public class Weight implements Comparable<Weight> {
 
   @Override
   public int compareTo(final Weight weight) {
-    return this.weightValue.compareTo(weight.weightValue);
+    return Integer.compare(weightValue, weight.weightValue);
   }
 
   public Integer getWeightValue() {
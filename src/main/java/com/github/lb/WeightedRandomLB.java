@@ -0,0 +1,89 @@
+package com.github.lb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A weighted random load balancer: nodes are picked at random in proportion to their weights.
+ * 
+ * Unlike weighted round-robin, there is no shared cursor to advance, so selection is stateless and
+ * scales with cores. Each pick is one random draw plus one lookup in an {@link AliasTable} that is
+ * rebuilt only when membership changes, on the mutating thread, or member weights change, once per
+ * burst on the scheduler thread. If all weights are zero, nodes are picked uniformly.
+ * 
+ * @author gaurav
+ */
+public class WeightedRandomLB extends AbstractLoadBalancer {
+  private final SnapshotTableCache<AliasTable> aliasTables =
+      new SnapshotTableCache<>(registry, AliasTable::new);
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    final AliasTable table = aliasTables.get();
+    final Node[] nodes = table.getSnapshot().nodes();
+    // 0. short-circuit if just 1 node
+    if (nodes.length == 1) {
+      return nodes[0];
+    }
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (nodes.length == 0) {
+      // only while the first nodes are being published
+      return snapshot.get(random.nextInt(snapshot.size()));
+    }
+    return nodes[table.pick(random)];
+  }
+
+  @Override
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final AliasTable table = aliasTables.get();
+    final Node[] nodes = table.getSnapshot().nodes();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int iter = 0; iter < count; iter++) {
+      out[iter] = nodes.length == 0 ? snapshot.get(random.nextInt(snapshot.size()))
+          : nodes[table.pick(random)];
+    }
+    return count;
+  }
+
+  @Override
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final AliasTable table = aliasTables.get();
+    final Node[] nodes = table.getSnapshot().nodes();
+    if (nodes.length == 0) {
+      return fillDistinct(snapshot.nodes(), out, 0, Math.min(count, snapshot.size()));
+    }
+    final int target = Math.min(count, table.getEligible());
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    int selected = 0;
+    for (int attempt = 0; selected < target && attempt < target * 4; attempt++) {
+      final Node node = nodes[table.pick(random)];
+      if (!contains(out, selected, node)) {
+        out[selected++] = node;
+      }
+    }
+    // top up with the remaining eligible nodes, skipping drained (zero weight) ones
+    final int offset = random.nextInt(nodes.length);
+    for (int iter = 0; iter < nodes.length && selected < target; iter++) {
+      final int index = (offset + iter) % nodes.length;
+      if (table.isEligible(index) && !contains(out, selected, nodes[index])) {
+        out[selected++] = nodes[index];
+      }
+    }
+    return selected;
+  }
+
+  @Override
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    aliasTables.refresh();
+  }
+
+  @Override
+  protected void onWeightChange(final NodeSnapshot snapshot) {
+    aliasTables.refresh();
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.WEIGHTED_RANDOM;
+  }
+
+}
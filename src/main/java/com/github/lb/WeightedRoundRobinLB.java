@@ -1,24 +1,19 @@
 package com.github.lb;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A weighted round-robin load balancer implementation.
  * 
- * Note that this works in a round-robin fashion decrementing any available weight for the nodes
- * along the way. If in a round, all runtime weights have zeroed out already, that indicates that we
- * have used up all available slots and we reset runtime available capacities equal to the weights
- * of respective nodes.
+ * Note that this works as an interleaved ("smooth") weighted round-robin: nodes are selected in
+ * proportion to their weights, but selections of a heavy node are spread across the cycle instead
+ * of being handed out in one burst. Nodes with a weight of zero are not selected unless every node
+ * has a weight of zero, in which case this degrades to plain round-robin. See
+ * {@link SmoothWeightedSchedule} for the mechanics.
+ * 
+ * The schedule is derived from the node snapshot and rebuilt only when membership changes, on the
+ * mutating thread, or member weights change, once per burst on the scheduler thread, so per-call
+ * cost is predictable regardless of how many weighted nodes are behind it.
  * 
  * Important to understand here is the fact that despite having rehydrated or observing allocated
  * capacities of zero, it says little about the serving latency distribution of requests already
@@ -27,126 +22,51 @@ import org.apache.logging.log4j.Logger;
  * 
  * @author gaurav
  */
-public class WeightedRoundRobinLB implements LoadBalancer {
-  private static final Logger logger =
-      LogManager.getLogger(WeightedRoundRobinLB.class.getSimpleName());
-
-  private final ReentrantReadWriteLock superLock = new ReentrantReadWriteLock(true);
-  private final WriteLock writeLock = superLock.writeLock();
-  private final ReadLock readLock = superLock.readLock();
-
-  // ensure both are protected via single-writer principle
-  private final List<Node> activeNodes = new ArrayList<>();
-  private final Map<Node, Integer> nodeRemainingCapacityMap = new HashMap<>();
-  private int nodeIndex;
+public class WeightedRoundRobinLB extends AbstractLoadBalancer {
+  private final SnapshotTableCache<SmoothWeightedSchedule> schedules =
+      new SnapshotTableCache<>(registry, SmoothWeightedSchedule::new);
 
   @Override
-  public Node selectNode() {
-    Node node = null;
-    if (writeLock.tryLock()) {
-      try {
-        // 0. short-circuit if just 1 node
-        if (activeNodes.size() == 1) {
-          return activeNodes.get(0);
-        }
-
-        // 1. if all runtimeCapacities are exhausted (0), reset all to allocatedCap
-        boolean allDrained = true;
-        for (final Map.Entry<Node, Integer> entry : nodeRemainingCapacityMap.entrySet()) {
-          if (entry.getValue() > 0) {
-            allDrained = false;
-            break;
-          }
-        }
-        if (allDrained) {
-          // it's possible that a node got removed from the active set, don't rely on the last
-          // hydration validity of runtime map
-          nodeRemainingCapacityMap.clear();
-          for (final Node nodeToRefill : activeNodes) {
-            nodeRemainingCapacityMap.put(nodeToRefill, nodeToRefill.getWeight().getWeightValue());
-          }
-        }
-
-        int remainingCapacity = 0, nextNode = 0;
-        while (remainingCapacity == 0) {
-          // 2. circle through the node list
-          nextNode = nodeIndex % activeNodes.size();
-          node = activeNodes.get(nextNode);
-
-          // 3. we already checked that for at least one node, remainingCapacity has not drained to
-          // zero; if all nodes had drained, we would have rehydrated them all
-          remainingCapacity = nodeRemainingCapacityMap.get(node);
-
-          if (remainingCapacity == 0) {
-            nodeIndex = nextNode + 1;
-          }
-        }
-
-        // 4. now allocate and decrement remainingCapacity
-        nodeRemainingCapacityMap.put(node, remainingCapacity - 1);
-
-        logger
-            .info(String.format("Selected %s, remainingCapacity:%d", node, remainingCapacity - 1));
-
-        nodeIndex = nextNode + 1;
-      } finally {
-        writeLock.unlock();
-      }
+  protected Node select(final NodeSnapshot snapshot) {
+    final SmoothWeightedSchedule schedule = schedules.get();
+    final Node[] nodes = schedule.getSnapshot().nodes();
+    // 0. short-circuit if just 1 node
+    if (nodes.length == 1) {
+      return nodes[0];
+    }
+    if (nodes.length == 0) {
+      // only while the first nodes are being published
+      return snapshot.get(ThreadLocalRandom.current().nextInt(snapshot.size()));
     }
-    return node;
+    return nodes[schedule.next()];
   }
 
   @Override
-  public List<Node> listNodes() {
-    List<Node> nodes = Collections.emptyList();
-    if (readLock.tryLock()) {
-      try {
-        nodes = Collections.unmodifiableList(activeNodes);
-      } finally {
-        readLock.unlock();
-      }
+  protected int select(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final SmoothWeightedSchedule schedule = schedules.get();
+    if (schedule.getSnapshot().isEmpty()) {
+      return super.select(snapshot, count, out);
     }
-    return nodes;
+    return schedule.next(schedule.getSnapshot().nodes(), count, out, false);
   }
 
   @Override
-  public boolean addNode(Node node) {
-    boolean added = false;
-    if (node == null) {
-      throw new IllegalArgumentException("Cannot add a null node");
+  protected int selectDistinct(final NodeSnapshot snapshot, final int count, final Node[] out) {
+    final SmoothWeightedSchedule schedule = schedules.get();
+    if (schedule.getSnapshot().isEmpty()) {
+      return super.selectDistinct(snapshot, count, out);
     }
-    if (writeLock.tryLock()) {
-      try {
-        activeNodes.add(node);
-        // start with allocating runtime capacity = node's allocated weight
-        nodeRemainingCapacityMap.put(node, node.getWeight().getWeightValue());
-        added = true;
-        logger.info("Added " + node);
-      } finally {
-        writeLock.unlock();
-      }
-    }
-    return added;
+    return schedule.next(schedule.getSnapshot().nodes(), count, out, true);
   }
 
   @Override
-  public boolean removeNode(Node node) {
-    boolean removed = false;
-    if (node == null) {
-      throw new IllegalArgumentException("Cannot remove a null node");
-    }
-    if (writeLock.tryLock()) {
-      try {
-        removed = activeNodes.remove(node);
-        if (removed) {
-          nodeRemainingCapacityMap.remove(node);
-          logger.info("Removed " + node);
-        }
-      } finally {
-        writeLock.unlock();
-      }
-    }
-    return removed;
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    schedules.refresh();
+  }
+
+  @Override
+  protected void onWeightChange(final NodeSnapshot snapshot) {
+    schedules.refresh();
   }
 
   @Override
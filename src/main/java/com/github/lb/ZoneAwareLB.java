@@ -0,0 +1,311 @@
+package com.github.lb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A locality-aware composite load balancer. Nodes are grouped by {@link Node#getZone()} and every
+ * zone gets its own delegate balancer, created from the given factory, that makes the in-zone
+ * choice with any of the existing strategies. Traffic stays in the local zone except for a spill
+ * fraction routed to remote zones in proportion to their selectable nodes:
+ *
+ * <pre>
+ * spill = max(1 - healthyFraction, 1 - 1 / saturation)
+ * </pre>
+ *
+ * where healthyFraction is the share of local members not ejected by outlier detection and
+ * saturation is the local in-flight count over localNodes * maxInFlightPerNode (only considered
+ * above 1, and only if maxInFlightPerNode is set). A local zone without selectable nodes spills
+ * everything.
+ *
+ * Delegates and a per-zone table are reconciled on the mutating thread on every membership change,
+ * so selection only reads the published table and never filters the full node list. Keyed
+ * selections derive the spill decision and the remote zone from the key, so keys stay sticky while
+ * zone health is steady. In-flight counts come from this balancer's {@link Lease}s; delegates see
+ * node-level in-flight counts and reported responses, but not their own lease hooks.
+ *
+ * @author gaurav
+ */
+public class ZoneAwareLB extends AbstractLoadBalancer {
+  private final String localZone;
+  private final Supplier<? extends LoadBalancer> delegateFactory;
+  private final int maxInFlightPerNode;
+  private final ConcurrentHashMap<String, Zone> zones = new ConcurrentHashMap<>();
+  private final Object tableLock = new Object();
+  private volatile ZoneTable table = ZoneTable.EMPTY;
+
+  public ZoneAwareLB(final String localZone,
+      final Supplier<? extends LoadBalancer> delegateFactory) {
+    this(localZone, delegateFactory, 0);
+  }
+
+  /**
+   * @param maxInFlightPerNode in-flight requests a local node takes before the zone counts as
+   *        saturated, 0 to spill on health only
+   */
+  public ZoneAwareLB(final String localZone, final Supplier<? extends LoadBalancer> delegateFactory,
+      final int maxInFlightPerNode) {
+    if (localZone == null) {
+      throw new IllegalArgumentException("Cannot use a null local zone");
+    }
+    if (delegateFactory == null) {
+      throw new IllegalArgumentException("Cannot use a null delegate factory");
+    }
+    if (maxInFlightPerNode < 0) {
+      throw new IllegalArgumentException("Cannot use a maxInFlightPerNode < 0");
+    }
+    this.localZone = localZone;
+    this.delegateFactory = delegateFactory;
+    this.maxInFlightPerNode = maxInFlightPerNode;
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final Zone zone = route(table, random.nextDouble(), random.nextLong());
+    final Node node = zone == null ? null : selectIn(zone, false, 0L);
+    // only while a membership change is being reconciled or the zone is saturated
+    return node != null ? node : snapshot.get(random.nextInt(snapshot.size()));
+  }
+
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final long keyHash) {
+    final long zoneHash = Hashing.mix64(keyHash + Hashing.GOLDEN_GAMMA);
+    final Zone zone = route(table, (keyHash >>> 11) * 0x1.0p-53, zoneHash);
+    final Node node = zone == null ? null : selectIn(zone, true, keyHash);
+    return node != null ? node
+        : snapshot.get((int) Long.remainderUnsigned(zoneHash, snapshot.size()));
+  }
+
+  /**
+   * Exclusions are skipped by the delegate of the routed zone, and spill over to the other zones
+   * only once every selectable node of that zone is excluded.
+   */
+  @Override
+  protected Node select(final NodeSnapshot snapshot, final Exclusion exclusion) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final Zone zone = route(table, random.nextDouble(), random.nextLong());
+    final Node node = zone == null ? null : selectIn(zone, exclusion);
+    return node != null ? node
+        : firstNotExcluded(snapshot, exclusion, random.nextInt(snapshot.size()));
+  }
+
+  /**
+   * Both nodes come from the routed zone while it has two that are not excluded, the hedge only
+   * leaves the zone otherwise.
+   */
+  @Override
+  protected int selectHedged(final NodeSnapshot snapshot, final Exclusion exclusion,
+      final Node[] out) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final Zone zone = route(table, random.nextDouble(), random.nextLong());
+    final int selected = zone == null ? 0 : zone.delegate.selectHedged(exclusion, out);
+    if (selected != 1) {
+      return selected > 0 ? selected : super.selectHedged(snapshot, exclusion, out);
+    }
+    exclusion.add(out[0]);
+    try {
+      final Node second =
+          firstNotExcluded(snapshot, exclusion, random.nextInt(snapshot.size()));
+      if (second == null) {
+        return 1;
+      }
+      out[1] = second;
+      return 2;
+    } finally {
+      exclusion.removeLast();
+    }
+  }
+
+  // a saturated zone leaves the node to the spill scan over all zones
+  private static Node selectIn(final Zone zone, final boolean keyed, final long keyHash) {
+    try {
+      return keyed ? zone.delegate.selectNode(keyHash) : zone.delegate.selectNode();
+    } catch (SaturatedException saturated) {
+      return null;
+    }
+  }
+
+  private static Node selectIn(final Zone zone, final Exclusion exclusion) {
+    try {
+      return zone.delegate.selectNode(exclusion);
+    } catch (SaturatedException saturated) {
+      return null;
+    }
+  }
+
+  private Zone route(final ZoneTable current, final double spillDraw, final long zoneDraw) {
+    if (current.localSelectable > 0
+        && (current.remoteSelectable == 0 || spillDraw >= spill(current))) {
+      return current.local;
+    }
+    if (current.remoteSelectable == 0) {
+      return null;
+    }
+    final long target = Long.remainderUnsigned(zoneDraw, current.remoteSelectable);
+    int index = 0;
+    while (current.remoteCumulative[index] <= target) {
+      index++;
+    }
+    return current.remotes[index];
+  }
+
+  /**
+   * @return the fraction of traffic currently spilled to remote zones
+   */
+  public double getSpill() {
+    final ZoneTable current = table;
+    if (current.localSelectable == 0) {
+      return 1.0;
+    }
+    return current.remoteSelectable == 0 ? 0.0 : spill(current);
+  }
+
+  private double spill(final ZoneTable current) {
+    final double unhealthy = 1.0 - (double) current.localSelectable / current.localMembers;
+    if (maxInFlightPerNode == 0) {
+      return unhealthy;
+    }
+    final double saturation = (double) current.local.inFlight.get()
+        / ((long) current.localSelectable * maxInFlightPerNode);
+    return saturation > 1.0 ? Math.max(unhealthy, 1.0 - 1.0 / saturation) : unhealthy;
+  }
+
+  @Override
+  protected void onAcquire(final Node node) {
+    super.onAcquire(node);
+    final Zone zone = zones.get(node.getZone());
+    if (zone != null) {
+      zone.inFlight.incrementAndGet();
+    }
+  }
+
+  @Override
+  protected void onRelease(final Node node, final long elapsedNanos) {
+    super.onRelease(node, elapsedNanos);
+    final Zone zone = zones.get(node.getZone());
+    if (zone != null) {
+      zone.inFlight.decrementAndGet();
+    }
+  }
+
+  @Override
+  protected void onResponse(final Node node, final long latencyNanos, final boolean success) {
+    final Zone zone = zones.get(node.getZone());
+    if (zone != null) {
+      zone.delegate.recordResponse(node, latencyNanos, success);
+    }
+  }
+
+  /**
+   * Reconcile every zone delegate with the zone's selectable nodes and publish a fresh zone table.
+   */
+  @Override
+  protected void onMembershipChange(final NodeSnapshot snapshot) {
+    synchronized (tableLock) {
+      final NodeSnapshot latest = registry.snapshot();
+      final Map<String, List<Node>> selectable = new HashMap<>();
+      for (final Node node : latest.asList()) {
+        selectable.computeIfAbsent(node.getZone(), key -> new ArrayList<>()).add(node);
+      }
+      final Map<String, Integer> members = new HashMap<>();
+      for (final Node node : latest.getMembers()) {
+        members.merge(node.getZone(), 1, Integer::sum);
+      }
+      for (final String name : members.keySet()) {
+        zones.computeIfAbsent(name, key -> new Zone(newDelegate()));
+      }
+
+      Zone local = null;
+      int localSelectable = 0, localMembers = 0;
+      final List<Zone> remotes = new ArrayList<>();
+      final List<Integer> remoteCounts = new ArrayList<>();
+      for (final Map.Entry<String, Zone> entry : zones.entrySet()) {
+        final List<Node> nodes =
+            selectable.getOrDefault(entry.getKey(), Collections.<Node>emptyList());
+        reconcile(entry.getValue().delegate, nodes);
+        if (entry.getKey().equals(localZone)) {
+          local = entry.getValue();
+          localSelectable = nodes.size();
+          localMembers = members.getOrDefault(entry.getKey(), 0);
+        } else if (!nodes.isEmpty()) {
+          remotes.add(entry.getValue());
+          remoteCounts.add(nodes.size());
+        }
+      }
+      table = new ZoneTable(local, localSelectable, localMembers, remotes, remoteCounts);
+    }
+  }
+
+  private LoadBalancer newDelegate() {
+    final LoadBalancer delegate = delegateFactory.get();
+    if (delegate == null || delegate == this) {
+      throw new IllegalArgumentException("Delegate factory must supply a new load balancer");
+    }
+    return delegate;
+  }
+
+  public String getLocalZone() {
+    return localZone;
+  }
+
+  /**
+   * @return the delegate balancing within the given zone, null if the zone was never seen
+   */
+  public LoadBalancer getDelegate(final String zone) {
+    final Zone state = zones.get(zone);
+    return state == null ? null : state.delegate;
+  }
+
+  @Override
+  public LBStrategy getStrategy() {
+    return LBStrategy.ZONE_AWARE;
+  }
+
+  private static final class Zone {
+    private final LoadBalancer delegate;
+    private final AtomicLong inFlight = new AtomicLong();
+
+    private Zone(final LoadBalancer delegate) {
+      this.delegate = delegate;
+    }
+  }
+
+  /**
+   * Immutable routing table, remote zones are picked in proportion to their selectable nodes.
+   */
+  private static final class ZoneTable {
+    private static final ZoneTable EMPTY = new ZoneTable(null, 0, 0,
+        Collections.<Zone>emptyList(), Collections.<Integer>emptyList());
+
+    private final Zone local;
+    private final int localSelectable;
+    private final int localMembers;
+    private final Zone[] remotes;
+    private final long[] remoteCumulative;
+    private final long remoteSelectable;
+
+    private ZoneTable(final Zone local, final int localSelectable, final int localMembers,
+        final List<Zone> remotes, final List<Integer> remoteCounts) {
+      this.local = local;
+      this.localSelectable = localSelectable;
+      this.localMembers = localMembers;
+      this.remotes = remotes.toArray(new Zone[remotes.size()]);
+      this.remoteCumulative = new long[remotes.size()];
+      long total = 0L;
+      for (int iter = 0; iter < remoteCumulative.length; iter++) {
+        total += remoteCounts.get(iter);
+        remoteCumulative[iter] = total;
+      }
+      this.remoteSelectable = total;
+    }
+  }
+
+}
@@ -1,11 +1,30 @@
 package com.github.lb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -55,6 +74,40 @@ public class LoadBalancerTest {
     logger.info(builder.toString());
   }
 
+  @Test
+  public void testRRandomChoicesOfNNodesLBCandidates() {
+    final RRandomChoicesOfNNodesLB lb = new RRandomChoicesOfNNodesLB(4);
+    final IdProvider idProvider = new RandomIdProvider();
+
+    final int nodeCount = 5;
+    final Node[] nodes = new Node[nodeCount];
+    for (int iter = 0; iter < nodeCount; iter++) {
+      nodes[iter] = new Node(idProvider);
+      nodes[iter].setLoad(new Load((float) iter));
+      lb.addNode(nodes[iter]);
+    }
+    // 4 distinct candidates out of 5 can never include the most loaded node as the winner
+    for (int iter = 0; iter < 1000; iter++) {
+      assertTrue(lb.selectNode() != nodes[nodeCount - 1]);
+    }
+
+    // R >= N degrades to an exact scan
+    assertTrue(lb.overrideRandomChoices(nodeCount + 3));
+    for (int iter = 0; iter < 100; iter++) {
+      assertEquals(nodes[0], lb.selectNode());
+    }
+
+    // ties are broken at random rather than always favoring the first candidate
+    final Map<Node, Integer> nodeSelectionFrequency = new HashMap<>();
+    nodes[1].setLoad(new Load(0.0f));
+    for (int iter = 0; iter < 1000; iter++) {
+      nodeSelectionFrequency.merge(lb.selectNode(), 1, Integer::sum);
+    }
+    assertEquals(2, nodeSelectionFrequency.size());
+    assertTrue(nodeSelectionFrequency.get(nodes[0]) > 300);
+    assertTrue(nodeSelectionFrequency.get(nodes[1]) > 300);
+  }
+
   @Test
   public void testRoundRobinLB() {
     final LoadBalancer lb = new RoundRobinLB();
@@ -80,6 +133,37 @@ public class LoadBalancerTest {
     logger.info(builder.toString());
   }
 
+  @Test
+  public void testRoundRobinLBConcurrentRotation() throws Exception {
+    final LoadBalancer lb = new RoundRobinLB();
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 5;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+
+    final int threads = 4;
+    final int rounds = nodeCount * 1000;
+    final Map<Node, AtomicInteger> nodeSelectionFrequency = new ConcurrentHashMap<>();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      executor.submit(() -> {
+        for (int iter = 0; iter < rounds; iter++) {
+          nodeSelectionFrequency.computeIfAbsent(lb.selectNode(), node -> new AtomicInteger())
+              .incrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+    // every claimed slot maps to exactly one node, so the rotation stays perfectly even
+    assertEquals(nodeCount, nodeSelectionFrequency.size());
+    for (AtomicInteger frequency : nodeSelectionFrequency.values()) {
+      assertEquals(threads * rounds / nodeCount, frequency.get());
+    }
+  }
+
   @Test
   public void testWeightedRoundRobinLB() {
     final LoadBalancer lb = new WeightedRoundRobinLB();
@@ -99,33 +183,1526 @@ public class LoadBalancerTest {
     node3.setWeight(new Weight(7));
     lb.addNode(node3);
 
+    // selections are interleaved in proportion to weights rather than drained node by node
+    final Node[] expected = new Node[] {node3, node2, node1, node3, node2, node3, node1, node3,
+        node2, node3, node2, node3, node1, node2, node3};
     StringBuilder builder =
         new StringBuilder("Weighted-Round-Robin-LB node selection distribution::");
-    int rounds = 20;
+    int rounds = 30;
     for (int iter = 0; iter < rounds; iter++) {
       Node node = lb.selectNode();
       builder.append("\n\t").append(node);
+      assertEquals(expected[iter % expected.length], node);
+    }
+    logger.info(builder.toString());
+  }
+
+  @Test
+  public void testWeightedRoundRobinLBSmoothness() throws Exception {
+    final LoadBalancer lb = new WeightedRoundRobinLB();
+    final IdProvider idProvider = new RandomIdProvider();
+
+    final Node[] nodes = new Node[3];
+    final int[] weights = new int[] {5, 1, 1};
+    for (int iter = 0; iter < nodes.length; iter++) {
+      nodes[iter] = new Node(idProvider);
+      nodes[iter].setWeight(new Weight(weights[iter]));
+      lb.addNode(nodes[iter]);
+    }
+    final int[] expected = new int[] {0, 0, 1, 0, 2, 0, 0};
+    final Node stranger = new Node(idProvider);
+    for (int iter = 0; iter < expected.length; iter++) {
+      assertEquals(nodes[expected[iter]], lb.selectNode());
+      // weight changes of other balancers' nodes never restart the cycle
+      stranger.setWeightValue(iter + 1);
+    }
+
+    // weight changes are picked up: 0 weights are skipped
+    nodes[0].setWeight(new Weight(0));
+    awaitScheduled();
+    for (int iter = 0; iter < 4; iter++) {
+      assertEquals(nodes[1 + (iter % 2)], lb.selectNode());
+    }
+
+    // all weights 0 degrades to plain round-robin instead of spinning
+    nodes[1].setWeight(new Weight(0));
+    nodes[2].setWeight(new Weight(0));
+    awaitScheduled();
+    for (int iter = 0; iter < 6; iter++) {
+      assertEquals(nodes[iter % 3], lb.selectNode());
+    }
+  }
+
+  @Test
+  public void testSmoothWeightedScheduleLargeFleet() throws Exception {
+    final IdProvider idProvider = new RandomIdProvider();
+    final NodeRegistry registry = new NodeRegistry();
+    final int nodeCount = 600;
+    long totalWeight = 0;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      Node node = new Node(idProvider);
+      node.setWeight(new Weight(1000 + iter));
+      totalWeight += 1000 + iter;
+      registry.addNode(node);
+    }
+    // too long to precompute, falls back to the O(n) on-the-fly engine
+    final SmoothWeightedSchedule schedule = new SmoothWeightedSchedule(registry.snapshot());
+    assertFalse(schedule.isPrecomputed());
+    assertEquals(totalWeight, schedule.getTotalWeight());
+
+    final int[] frequency = new int[nodeCount];
+    for (long iter = 0; iter < totalWeight; iter++) {
+      frequency[schedule.next()]++;
+    }
+    for (int iter = 0; iter < nodeCount; iter++) {
+      assertEquals(1000 + iter, frequency[iter]);
+    }
+
+    // concurrent picks never wait for the thread computing the next window of picks
+    final int threads = 4;
+    final int picks = 200000;
+    final AtomicInteger[] concurrentFrequency = new AtomicInteger[nodeCount];
+    for (int iter = 0; iter < nodeCount; iter++) {
+      concurrentFrequency[iter] = new AtomicInteger();
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      futures.add(executor.submit(() -> {
+        for (int iter = 0; iter < picks; iter++) {
+          concurrentFrequency[schedule.next()].incrementAndGet();
+        }
+      }));
+    }
+    for (final Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdownNow();
+    int total = 0;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      total += concurrentFrequency[iter].get();
+    }
+    assertEquals(threads * picks, total);
+  }
+
+  @Test
+  public void testWeightedRandomLB() {
+    final LoadBalancer lb = new WeightedRandomLB();
+    assertEquals(LBStrategy.WEIGHTED_RANDOM, lb.getStrategy());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int[] weights = new int[] {1, 2, 7, 0};
+    final Map<Node, Integer> nodeWeights = new HashMap<>();
+    for (int weight : weights) {
+      Node node = new Node(idProvider);
+      node.setWeight(new Weight(weight));
+      lb.addNode(node);
+      nodeWeights.put(node, weight);
+    }
+
+    final Map<Node, Integer> nodeSelectionFrequency = new HashMap<>();
+    final int rounds = 100000;
+    for (int iter = 0; iter < rounds; iter++) {
+      nodeSelectionFrequency.merge(lb.selectNode(), 1, Integer::sum);
+    }
+    for (Map.Entry<Node, Integer> entry : nodeWeights.entrySet()) {
+      final double expectedShare = entry.getValue() / 10.0;
+      final Integer frequency = nodeSelectionFrequency.getOrDefault(entry.getKey(), 0);
+      assertEquals(expectedShare, frequency / (double) rounds, 0.02);
+    }
+  }
+
+  @Test
+  public void testWeightChangesOnlyTouchMembers() throws Exception {
+    final IdProvider idProvider = new RandomIdProvider();
+    final AtomicInteger rebuilds = new AtomicInteger();
+    final WeightedRandomLB one = new WeightedRandomLB() {
+      @Override
+      protected void onWeightChange(final NodeSnapshot snapshot) {
+        rebuilds.incrementAndGet();
+        super.onWeightChange(snapshot);
+      }
+    };
+    final WeightedRandomLB two = new WeightedRandomLB();
+    final Node heavy = new Node(idProvider);
+    final Node light = new Node(idProvider);
+    final Node other = new Node(idProvider);
+    heavy.setWeightValue(1);
+    light.setWeightValue(1);
+    one.addNodes(Arrays.asList(heavy, light));
+    two.addNode(other);
+
+    // only the registries a node is a member of see its weight changes
+    heavy.setWeightValue(0);
+    assertEquals(1L, one.registry.getWeightGeneration());
+    assertEquals(0L, two.registry.getWeightGeneration());
+    // and the table is rebuilt off the mutating thread
+    awaitScheduled();
+    assertEquals(1, rebuilds.get());
+    for (int iter = 0; iter < 100; iter++) {
+      assertEquals(light, one.selectNode());
+    }
+
+    // re-weighting a fleet is coalesced into a single rebuild while one is pending
+    final List<Node> fleet = new ArrayList<>();
+    for (int iter = 0; iter < 100; iter++) {
+      fleet.add(new Node(idProvider));
+    }
+    one.addNodes(fleet);
+    final CountDownLatch busy = new CountDownLatch(1);
+    Scheduler.schedule(() -> {
+      try {
+        busy.await();
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }, 0L);
+    for (final Node node : fleet) {
+      node.setWeightValue(1);
+    }
+    busy.countDown();
+    awaitScheduled();
+    assertEquals(2, rebuilds.get());
+    assertEquals(101L, one.registry.getWeightGeneration());
+
+    two.removeNode(other);
+    other.setWeightValue(5);
+    assertEquals(0L, two.registry.getWeightGeneration());
+    two.addNode(other);
+    other.setWeightValue(6);
+    assertEquals(1L, two.registry.getWeightGeneration());
+  }
+
+  @Test
+  public void testNodeLoadAndWeight() throws Exception {
+    final Node node = new Node(new RandomIdProvider());
+    assertEquals(0.0f, node.getLoadValue(), 0.0f);
+    assertEquals(0, node.getWeightValue());
+
+    node.setLoad(new Load(2.5f));
+    assertEquals(2.5f, node.getLoadValue(), 0.0f);
+    assertEquals(0, new Load(2.5f).compareTo(node.getLoad()));
+    node.setWeight(new Weight(4));
+    assertEquals(4, node.getWeightValue());
+    assertEquals(Integer.valueOf(4), node.getWeight().getWeightValue());
+
+    // load never drops below zero
+    node.setLoadValue(0.5f);
+    assertEquals(0.0f, node.decrementLoad(), 0.0f);
+
+    final int threads = 4;
+    final int rounds = 10000;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      executor.submit(() -> {
+        for (int iter = 0; iter < rounds; iter++) {
+          node.incrementLoad();
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(threads * rounds, node.getLoadValue(), 0.0f);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNodeRejectsNegativeLoad() {
+    new Node(new RandomIdProvider()).setLoadValue(-1.0f);
+  }
+
+  @Test
+  public void testSelectionMetrics() {
+    final LoadBalancer lb = new RoundRobinLB();
+    assertEquals(LoadBalancerStats.EMPTY, lb.getStats());
+    lb.setSelectionListener(new SelectionMetrics());
+    assertNull(lb.selectNode());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 4;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+    final int rounds = 100;
+    for (int iter = 0; iter < rounds; iter++) {
+      lb.selectNode();
+    }
+
+    final LoadBalancerStats stats = lb.getStats();
+    logger.info(stats);
+    assertEquals(rounds, stats.getSelections());
+    assertEquals(1, stats.getEmptySelections());
+    assertEquals(0, stats.getFailedSelections());
+    for (Node node : lb.listNodes()) {
+      assertEquals(rounds / nodeCount, stats.getSelections(node));
+    }
+    assertTrue(stats.getP50LatencyNanos() <= stats.getP99LatencyNanos());
+    assertTrue(stats.getP999LatencyNanos() <= stats.getMaxLatencyNanos());
+
+    // removed nodes are folded into one total
+    final Node removed = lb.listNodes().get(0);
+    assertTrue(lb.removeNode(removed));
+    final LoadBalancerStats after = lb.getStats();
+    assertEquals(rounds, after.getSelections());
+    assertEquals(nodeCount - 1, after.getNodeSelections().size());
+    assertEquals(0, after.getSelections(removed));
+    assertEquals(rounds / nodeCount, after.getRemovedSelections());
+  }
+
+  @Test
+  public void testBatchSelection() {
+    final LoadBalancer roundRobin = new RoundRobinLB();
+    final LoadBalancer weighted = new WeightedRoundRobinLB();
+    roundRobin.setSelectionListener(new SelectionMetrics());
+    final Node[] out = new Node[15];
+    assertEquals(0, roundRobin.selectNodes(4, out));
+    assertEquals(1, roundRobin.getStats().getEmptySelections());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 5;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      final Node node = new Node(idProvider);
+      node.setWeightValue(iter + 1);
+      roundRobin.addNode(node);
+      weighted.addNode(node);
+    }
+
+    // a batch claims a contiguous run of the rotation
+    final List<Node> nodes = roundRobin.listNodes();
+    assertEquals(nodes.get(0), roundRobin.selectNode());
+    assertEquals(12, roundRobin.selectNodes(12, out));
+    for (int iter = 0; iter < 12; iter++) {
+      assertEquals(nodes.get((iter + 1) % nodeCount), out[iter]);
+    }
+    assertEquals(13, roundRobin.getStats().getSelections());
+
+    // one schedule cycle of weighted round robin honors the weights exactly
+    assertEquals(15, weighted.selectNodes(15, out));
+    final Map<Node, Integer> counts = new HashMap<>();
+    for (final Node node : out) {
+      counts.merge(node, 1, Integer::sum);
+    }
+    for (final Node node : weighted.listNodes()) {
+      assertEquals(node.getWeightValue(), counts.get(node).intValue());
+    }
+  }
 
-      // node1 is already drained by this time
-      if (iter == 9) {
-        assertEquals(node2, node);
+  @Test
+  public void testDistinctBatchSelection() {
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 10;
+    final LoadBalancer[] lbs = new LoadBalancer[] {new RRandomChoicesOfNNodesLB(2),
+        new RoundRobinLB(), new WeightedRoundRobinLB(), new WeightedRandomLB(),
+        new LeastOutstandingLB(4), new PeakEwmaLB(), new ConsistentHashLB(16),
+        new MaglevLB(), new BoundedLoadConsistentHashLB(16, 0.25)};
+    for (int iter = 0; iter < nodeCount; iter++) {
+      final Node node = new Node(idProvider);
+      node.setWeightValue(1 + iter % 3);
+      node.setLoadValue(iter);
+      for (final LoadBalancer lb : lbs) {
+        lb.addNode(node);
       }
-      // node1 and node2 have both drained
-      if (iter == 12 || iter == 13 || iter == 14) {
-        assertEquals(node3, node);
+    }
+    final Node[] out = new Node[nodeCount + 5];
+    for (final LoadBalancer lb : lbs) {
+      for (final int count : new int[] {1, 2, 3, nodeCount, nodeCount + 5}) {
+        final int selected = lb.selectDistinctNodes(count, out);
+        assertEquals(lb.getStrategy().name(), Math.min(count, nodeCount), selected);
+        for (int one = 0; one < selected; one++) {
+          for (int two = one + 1; two < selected; two++) {
+            assertTrue(lb.getStrategy().name(), out[one] != out[two]);
+          }
+        }
       }
-      // all nodes drained, we refilled them and started over
-      if (iter == 15) {
-        assertEquals(node1, node);
+    }
+
+    // power of choices returns the least loaded of the sampled candidates, cheapest first
+    final LoadBalancer exact = new RRandomChoicesOfNNodesLB(nodeCount);
+    lbs[0].listNodes().forEach(exact::addNode);
+    for (final int count : new int[] {1, 2, 3, 5}) {
+      assertEquals(count, exact.selectDistinctNodes(count, out));
+      for (int iter = 0; iter < count; iter++) {
+        assertEquals(iter, out[iter].getLoadValue(), 0.0);
       }
-      if (iter == 16) {
-        assertEquals(node2, node);
+    }
+  }
+
+  @Test
+  public void testOutlierDetection() throws Exception {
+    final LoadBalancer lb = new RoundRobinLB();
+    final OutlierDetector detector =
+        new OutlierDetector(3, 50, 10, 25, 1, 50, 200, TimeUnit.MILLISECONDS);
+    lb.setOutlierDetector(detector);
+    assertEquals(detector, lb.getOutlierDetector());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 4;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+    final Node failing = lb.listNodes().get(0);
+    final Node alsoFailing = lb.listNodes().get(1);
+    final Node capped = lb.listNodes().get(2);
+    for (int iter = 0; iter < 3; iter++) {
+      lb.recordResponse(failing, 1000L, false);
+      lb.recordResponse(alsoFailing, 1000L, iter == 1);
+      lb.recordResponse(capped, 1000L, false);
+    }
+    lb.recordResponse(capped, 1000L, false);
+
+    // a success resets the consecutive failures and max ejection percent spares the third node
+    assertTrue(detector.isEjected(failing));
+    assertFalse(detector.isEjected(alsoFailing));
+    assertFalse(detector.isEjected(capped));
+    assertEquals(nodeCount, lb.listNodes().size());
+    for (int iter = 0; iter < 30; iter++) {
+      assertTrue(lb.selectNode() != failing);
+    }
+
+    // re-admitted by the scheduler once the backoff elapsed
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (detector.isEjected(failing) && System.nanoTime() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertFalse(detector.isEjected(failing));
+    boolean selected = false;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      selected |= lb.selectNode() == failing;
+    }
+    assertTrue(selected);
+
+    // ejections in a row back off further, a removed node is forgotten
+    for (int iter = 0; iter < 3; iter++) {
+      lb.recordResponse(failing, 1000L, false);
+    }
+    assertEquals(2, detector.getEjections(failing));
+    assertTrue(lb.removeNode(failing));
+    assertEquals(0, detector.getEjections(failing));
+    // late responses of removed nodes are not tracked again
+    for (int iter = 0; iter < 3; iter++) {
+      lb.recordResponse(failing, 1000L, false);
+    }
+    assertFalse(detector.isTracked(failing));
+    assertTrue(detector.isTracked(capped));
+    lb.setOutlierDetector(null);
+    assertNull(lb.getOutlierDetector());
+
+    // a small fleet still ejects one node where the percentage rounds down to none
+    final LoadBalancer single = new RoundRobinLB();
+    final OutlierDetector small =
+        new OutlierDetector(1, 50, 10, 10, 1, 50, 200, TimeUnit.MILLISECONDS);
+    final Node only = new Node(idProvider);
+    single.addNode(only);
+    single.setOutlierDetector(small);
+    single.recordResponse(only, 1000L, false);
+    assertTrue(small.isEjected(only));
+    assertNull(single.selectNode());
+  }
+
+  @Test
+  public void testSlowStart() throws Exception {
+    final SlowStart ramp = new SlowStart(100, TimeUnit.SECONDS, 0.1, 2.0);
+    assertEquals(0.1, ramp.factor(0L), 1e-9);
+    assertEquals(0.55, ramp.factor(TimeUnit.SECONDS.toNanos(25)), 1e-9);
+    assertEquals(1.0, ramp.factor(TimeUnit.SECONDS.toNanos(100)), 1e-9);
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final LoadBalancer roundRobin = new RoundRobinLB();
+    final LoadBalancer leastLoaded = new RRandomChoicesOfNNodesLB(2);
+    final SlowStart linear = new SlowStart(500, TimeUnit.MILLISECONDS);
+    roundRobin.setSlowStart(linear);
+    leastLoaded.setSlowStart(linear);
+    final int nodeCount = 4;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      final Node node = new Node(idProvider);
+      node.setLoadValue(10.0f);
+      roundRobin.addNode(node);
+      leastLoaded.addNode(node);
+    }
+    // nodes added together at startup are not ramped against each other
+    final Map<Node, Integer> counts = new HashMap<>();
+    for (int iter = 0; iter < 4000; iter++) {
+      counts.merge(roundRobin.selectNode(), 1, Integer::sum);
+    }
+    for (final Node node : roundRobin.listNodes()) {
+      assertTrue(counts.get(node) > 900);
+    }
+
+    // a fresh idle node would otherwise take 1/5 of round robin and 2/5 of power of 2 choices
+    final Node fresh = new Node(idProvider);
+    Thread.sleep(600L);
+    roundRobin.addNode(fresh);
+    leastLoaded.addNode(fresh);
+    final int rounds = 10000;
+    int roundRobinHits = 0, leastLoadedHits = 0;
+    for (int iter = 0; iter < rounds; iter++) {
+      roundRobinHits += roundRobin.selectNode() == fresh ? 1 : 0;
+      leastLoadedHits += leastLoaded.selectNode() == fresh ? 1 : 0;
+    }
+    assertTrue(roundRobinHits < rounds / 5 / 3);
+    assertTrue(leastLoadedHits < rounds * 2 / 5 / 3);
+
+    roundRobin.setSlowStart(null);
+    assertNull(roundRobin.getSlowStart());
+    roundRobinHits = 0;
+    for (int iter = 0; iter < rounds; iter++) {
+      roundRobinHits += roundRobin.selectNode() == fresh ? 1 : 0;
+    }
+    assertEquals(rounds / 5, roundRobinHits);
+  }
+
+  @Test
+  public void testZoneAwareLB() {
+    final ZoneAwareLB lb = new ZoneAwareLB("a", () -> new ConsistentHashLB(16), 2);
+    assertEquals(LBStrategy.ZONE_AWARE, lb.getStrategy());
+    lb.setOutlierDetector(new OutlierDetector(1, 50, 10, 50, 10, 60, 60, TimeUnit.SECONDS));
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final String[] zones = new String[] {"a", "a", "a", "a", "b", "b", "b", "b", "c", "c"};
+    for (final String zone : zones) {
+      lb.addNode(new Node(idProvider, zone));
+    }
+    assertEquals(4, lb.getDelegate("b").listNodes().size());
+    assertEquals(0.0, lb.getSpill(), 0.0);
+    for (int iter = 0; iter < 1000; iter++) {
+      assertEquals("a", lb.selectNode().getZone());
+    }
+    final Node keyed = lb.selectNode("user-42");
+    assertEquals(keyed, lb.selectNode("user-42"));
+
+    // losing half of the local zone spills half of the traffic, remote zones share it by size
+    lb.recordResponse(lb.listNodes().get(0), 1000L, false);
+    lb.recordResponse(lb.listNodes().get(1), 1000L, false);
+    assertEquals(2, lb.getDelegate("a").listNodes().size());
+    assertEquals(0.5, lb.getSpill(), 0.0);
+    final Map<String, Integer> counts = new HashMap<>();
+    final int rounds = 10000;
+    for (int iter = 0; iter < rounds; iter++) {
+      counts.merge(lb.selectNode().getZone(), 1, Integer::sum);
+    }
+    assertEquals(rounds / 2, counts.get("a"), rounds / 20);
+    assertEquals(rounds / 3, counts.get("b"), rounds / 20);
+    assertEquals(rounds / 6, counts.get("c"), rounds / 20);
+
+    // saturating the remaining local nodes spills their excess
+    lb.setOutlierDetector(null);
+    final List<Lease> leases = new ArrayList<>();
+    for (int iter = 0; iter < 40; iter++) {
+      leases.add(lb.lease());
+    }
+    assertTrue(lb.getSpill() > 0.5);
+    for (final Lease lease : leases) {
+      lease.close();
+    }
+    assertEquals(0.0, lb.getSpill(), 0.0);
+
+    // retries skip excluded nodes within the local zone, and only leave it once it is exhausted
+    final List<Node> local = lb.getDelegate("a").listNodes();
+    final Exclusion exclusion = new Exclusion();
+    exclusion.add(local.get(0));
+    final Node[] hedged = new Node[2];
+    for (int iter = 0; iter < 100; iter++) {
+      final Node retry = lb.selectNode(exclusion);
+      assertEquals("a", retry.getZone());
+      assertTrue(retry != local.get(0));
+      assertEquals(2, lb.selectHedged(exclusion, hedged));
+      assertEquals("a", hedged[0].getZone());
+      assertEquals("a", hedged[1].getZone());
+      assertTrue(hedged[0] != hedged[1] && !exclusion.contains(hedged[1]));
+    }
+    for (final Node node : local) {
+      exclusion.add(node);
+    }
+    final Node spilled = lb.selectNode(exclusion);
+    assertTrue(!"a".equals(spilled.getZone()));
+  }
+
+  @Test
+  public void testSubsettingLB() throws Exception {
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 100, clientCount = 10, subsetSize = 10;
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < nodeCount; iter++) {
+      nodes.add(new Node(idProvider));
+    }
+    final SubsettingLB[] clients = new SubsettingLB[clientCount];
+    final Map<Node, Integer> coverage = new HashMap<>();
+    for (int client = 0; client < clientCount; client++) {
+      clients[client] = new SubsettingLB(new RoundRobinLB(), client, clientCount, subsetSize);
+      assertEquals(nodeCount, clients[client].addNodes(nodes));
+      assertEquals(subsetSize, clients[client].getSubset().size());
+      for (final Node node : clients[client].getSubset()) {
+        coverage.merge(node, 1, Integer::sum);
       }
-      if (iter == 17) {
-        assertEquals(node3, node);
+      for (int iter = 0; iter < 100; iter++) {
+        assertTrue(clients[client].getSubset().contains(clients[client].selectNode()));
       }
     }
-    logger.info(builder.toString());
+    assertEquals(LBStrategy.SUBSETTING, clients[0].getStrategy());
+    // evenly spaced windows cover every node exactly once here
+    assertEquals(nodeCount, coverage.size());
+    for (final int covered : coverage.values()) {
+      assertEquals(1, covered);
+    }
+
+    // membership changes slide every window by at most one node
+    final Node added = new Node(idProvider);
+    for (final SubsettingLB client : clients) {
+      final List<Node> before = new ArrayList<>(client.getSubset());
+      client.addNode(added);
+      client.removeNode(nodes.get(7));
+      int kept = 0;
+      for (final Node node : client.getSubset()) {
+        kept += before.contains(node) ? 1 : 0;
+      }
+      assertTrue(kept >= subsetSize - 2);
+      assertEquals(nodeCount, client.listNodes().size());
+    }
+
+    // an adaptive subset grows with this client's in-flight requests
+    final SubsettingLB adaptive =
+        new SubsettingLB(new LeastOutstandingLB(), 3, clientCount, 2, 8, 2);
+    adaptive.addNodes(nodes);
+    assertEquals(2, adaptive.getSubsetSize());
+    final List<Lease> leases = new ArrayList<>();
+    for (int iter = 0; iter < 10; iter++) {
+      leases.add(adaptive.lease());
+    }
+    // resized off the request path
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (adaptive.getSubsetSize() != 5 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(5, adaptive.getSubsetSize());
+    assertEquals(5, adaptive.getSubset().size());
+    for (final Lease lease : leases) {
+      lease.close();
+    }
+
+    // exclusions spill over to the fleet once the whole subset is excluded
+    final Exclusion exclusion = new Exclusion();
+    for (final Node node : adaptive.getSubset()) {
+      exclusion.add(node);
+    }
+    final Node spare = adaptive.selectNode(exclusion);
+    assertNotNull(spare);
+    assertFalse(exclusion.contains(spare));
+  }
+
+  @Test
+  public void testNodeTable() {
+    final IdProvider idProvider = new RandomIdProvider();
+    // spans several table pages
+    final int nodeCount = 10000;
+    final List<Node> nodes = new ArrayList<>(nodeCount);
+    final Map<Integer, Node> byHandle = new HashMap<>();
+    for (int iter = 0; iter < nodeCount; iter++) {
+      final Node node = new Node(idProvider);
+      assertEquals(0.0f, node.getLoadValue(), 0.0f);
+      assertEquals(0, node.getWeightValue());
+      assertEquals(0, node.getInFlight());
+      node.setLoadValue(iter);
+      node.setWeightValue(iter % 7);
+      assertNull(byHandle.put(node.getHandle(), node));
+      nodes.add(node);
+    }
+    assertTrue(NodeTable.size() >= nodeCount);
+    for (int iter = 0; iter < nodeCount; iter++) {
+      final Node node = nodes.get(iter);
+      assertEquals(iter, NodeTable.load(node.getHandle()), 0.0f);
+      assertEquals(iter % 7, NodeTable.weight(node.getHandle()));
+    }
+
+    // selection reads the table columns through the snapshot handles
+    final RRandomChoicesOfNNodesLB lb = new RRandomChoicesOfNNodesLB(nodeCount);
+    assertEquals(nodeCount, lb.addNodes(nodes));
+    assertEquals(nodes.get(0), lb.selectNode());
+    nodes.get(0).setLoadValue(nodeCount);
+    assertEquals(nodes.get(1), lb.selectNode());
+    final Node[] out = new Node[3];
+    assertEquals(3, lb.selectDistinctNodes(3, out));
+    assertArrayEquals(new Node[] {nodes.get(1), nodes.get(2), nodes.get(3)}, out);
+    try (Lease lease = lb.lease()) {
+      assertEquals(1, NodeTable.inFlight(lease.getNode().getHandle()));
+    }
+  }
+
+  @Test
+  public void testLoadReports() throws Exception {
+    final IdProvider idProvider = new RandomIdProvider();
+    final RRandomChoicesOfNNodesLB lb = new RRandomChoicesOfNNodesLB(4);
+    final Node[] nodes = new Node[4];
+    final String[] ids = new String[nodes.length];
+    for (int iter = 0; iter < nodes.length; iter++) {
+      nodes[iter] = new Node(idProvider);
+      ids[iter] = nodes[iter].getId();
+      assertTrue(lb.addNode(nodes[iter]));
+    }
+    assertEquals(nodes[2], lb.getNode(ids[2]));
+    assertNull(lb.getNode("unknown"));
+
+    final LoadReports reports = new LoadReports(1, TimeUnit.SECONDS);
+    final long now = System.currentTimeMillis();
+    // the last node only has a report older than the staleness bound
+    assertEquals(3, reports.apply(lb, ids, new float[] {5.0f, 1.0f, 3.0f, 0.0f},
+        new long[] {now, now, now, now - 5000L}, 4));
+    assertEquals(1, reports.getDroppedCount());
+    assertEquals(1.0f, nodes[1].getLoadValue(), 0.0f);
+    assertEquals(now, nodes[1].getLoadReportMillis());
+    assertTrue(nodes[3].isLoadStale());
+    assertFalse(nodes[1].isLoadStale());
+    // the stale node reports the least load but is passed over
+    assertEquals(nodes[1], lb.selectNode());
+
+    // out of order, duplicate and negative reports are dropped
+    assertEquals(1, reports.apply(new Node[] {nodes[1], nodes[2], nodes[0], nodes[3]},
+        new float[] {9.0f, 9.0f, -1.0f, 0.5f}, new long[] {now - 1L, now, now + 1L, now + 1L}, 4));
+    assertEquals(1.0f, nodes[1].getLoadValue(), 0.0f);
+    assertEquals(5.0f, nodes[0].getLoadValue(), 0.0f);
+    assertFalse(nodes[3].isLoadStale());
+    assertEquals(nodes[3], lb.selectNode());
+    assertEquals(4, reports.getAppliedCount());
+    assertEquals(4, reports.getDroppedCount());
+
+    // reports that stop coming go stale without another batch or markStale
+    final LoadReports shortLived = new LoadReports(50, TimeUnit.MILLISECONDS);
+    final long later = System.currentTimeMillis();
+    assertEquals(4, shortLived.apply(nodes, new float[] {4.0f, 3.0f, 2.0f, 1.0f},
+        new long[] {later + 10L, later + 10L, later + 10L, later + 500L}, 4));
+    assertFalse(nodes[0].isLoadStale());
+    assertEquals(nodes[3], lb.selectNode());
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!nodes[0].isLoadStale() && System.nanoTime() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertTrue(nodes[0].isLoadStale());
+    assertTrue(nodes[2].isLoadStale());
+    // only the node whose report is still fresh is selected, however low the stale loads
+    assertFalse(nodes[3].isLoadStale());
+    assertEquals(nodes[3], lb.selectNode());
+    assertEquals(nodes[3], lb.selectNode());
+  }
+
+  @Test
+  public void testConcurrencyLimits() {
+    final IdProvider idProvider = new RandomIdProvider();
+    final LoadBalancer lb = new RoundRobinLB();
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < 3; iter++) {
+      final Node node = new Node(idProvider);
+      node.setConcurrencyLimit(1);
+      nodes.add(node);
+    }
+    lb.addNodes(nodes);
+
+    // saturated nodes are skipped until every node is saturated
+    final List<Lease> leases = new ArrayList<>();
+    final List<Node> leased = new ArrayList<>();
+    for (int iter = 0; iter < nodes.size(); iter++) {
+      final Lease lease = lb.lease("key");
+      assertFalse(leased.contains(lease.getNode()));
+      leases.add(lease);
+      leased.add(lease.getNode());
+    }
+    for (final Node node : nodes) {
+      assertTrue(node.isSaturated());
+      assertFalse(node.tryIncrementInFlight());
+    }
+    try {
+      lb.lease();
+      fail("Expected all nodes to be saturated");
+    } catch (SaturatedException saturated) {
+      assertEquals(3, saturated.getNodes());
+    }
+    try {
+      lb.selectNodes(2, new Node[2]);
+      fail("Expected all nodes to be saturated");
+    } catch (SaturatedException expected) {
+    }
+    leases.get(1).close();
+    for (int iter = 0; iter < 10; iter++) {
+      assertEquals(leases.get(1).getNode(), lb.selectNode());
+    }
+    final Node[] out = new Node[3];
+    assertEquals(1, lb.selectDistinctNodes(3, out));
+    assertEquals(leases.get(1).getNode(), out[0]);
+    assertNull(out[1]);
+    leases.get(0).close();
+    leases.get(2).close();
+
+    // with half the fleet saturated, batches and hedges are topped up with spare nodes
+    final List<Node> fleet = new ArrayList<>();
+    for (int iter = 0; iter < 6; iter++) {
+      final Node node = new Node(idProvider);
+      node.setConcurrencyLimit(1);
+      if (iter % 2 == 0) {
+        node.incrementInFlight();
+      }
+      fleet.add(node);
+    }
+    final Exclusion exclusion = new Exclusion();
+    exclusion.add(fleet.get(1));
+    for (final LoadBalancer half : new LoadBalancer[] {new RoundRobinLB(),
+        new RRandomChoicesOfNNodesLB(2), new WeightedRandomLB(), new WeightedRoundRobinLB(),
+        new ConsistentHashLB(16), new MaglevLB()}) {
+      half.addNodes(fleet);
+      for (int iter = 0; iter < 20; iter++) {
+        final Node[] batch = new Node[8];
+        assertEquals(8, half.selectNodes(8, batch));
+        for (final Node node : batch) {
+          assertFalse(node.isSaturated());
+        }
+        final Node[] distinct = new Node[6];
+        assertEquals(3, half.selectDistinctNodes(6, distinct));
+        assertEquals(3, new HashSet<>(Arrays.asList(distinct).subList(0, 3)).size());
+        for (int index = 0; index < 3; index++) {
+          assertFalse(distinct[index].isSaturated());
+        }
+        final Node[] hedged = new Node[2];
+        assertEquals(2, half.selectHedged(exclusion, hedged));
+        assertEquals(new HashSet<>(Arrays.asList(fleet.get(3), fleet.get(5))),
+            new HashSet<>(Arrays.asList(hedged)));
+        assertEquals(1, exclusion.size());
+      }
+    }
+    for (int iter = 1; iter < 6; iter += 2) {
+      fleet.get(iter).incrementInFlight();
+    }
+    final LoadBalancer full = new RoundRobinLB();
+    full.addNodes(fleet);
+    try {
+      full.selectHedged(exclusion, new Node[2]);
+      fail("Expected all nodes to be saturated");
+    } catch (SaturatedException expected) {
+    }
+
+    // AIMD: slow or failed responses back off, busy healthy nodes probe upwards
+    final AdaptiveConcurrencyLimit limit =
+        new AdaptiveConcurrencyLimit(10, 2, 20, 10, TimeUnit.MILLISECONDS);
+    lb.setConcurrencyLimit(limit);
+    assertEquals(limit, lb.getConcurrencyLimit());
+    final Node node = nodes.get(0);
+    assertEquals(10, node.getConcurrencyLimit());
+    lb.recordResponse(node, TimeUnit.MILLISECONDS.toNanos(50), true);
+    assertEquals(9, node.getConcurrencyLimit());
+    lb.recordResponse(node, TimeUnit.MILLISECONDS.toNanos(1), false);
+    assertEquals(8, node.getConcurrencyLimit());
+    // idle nodes keep their limit
+    lb.recordResponse(node, TimeUnit.MILLISECONDS.toNanos(1), true);
+    assertEquals(8, node.getConcurrencyLimit());
+    for (int iter = 0; iter < 4; iter++) {
+      node.incrementInFlight();
+    }
+    lb.recordResponse(node, TimeUnit.MILLISECONDS.toNanos(1), true);
+    assertEquals(9, node.getConcurrencyLimit());
+    for (int iter = 0; iter < 50; iter++) {
+      lb.recordResponse(node, TimeUnit.SECONDS.toNanos(1), true);
+    }
+    assertEquals(2, node.getConcurrencyLimit());
+    for (int iter = 0; iter < 4; iter++) {
+      node.decrementInFlight();
+    }
+    final Node added = new Node(idProvider);
+    lb.addNode(added);
+    assertEquals(10, added.getConcurrencyLimit());
+    // members passed along with new nodes keep their adapted limits
+    final Node another = new Node(idProvider);
+    assertEquals(1, lb.addNodes(Arrays.asList(node, another)));
+    assertEquals(2, node.getConcurrencyLimit());
+    assertEquals(10, another.getConcurrencyLimit());
+    lb.setConcurrencyLimit(null);
+    assertEquals(0, node.getConcurrencyLimit());
+    assertFalse(node.isSaturated());
+  }
+
+  @Test
+  public void testAsyncSelection() throws Exception {
+    final IdProvider idProvider = new RandomIdProvider();
+    final LoadBalancer lb = new RoundRobinLB();
+
+    // waits for the first node instead of returning null
+    final CompletableFuture<Node> pending = lb.selectNodeAsync();
+    assertFalse(pending.isDone());
+    final Node node = new Node(idProvider);
+    node.setConcurrencyLimit(1);
+    lb.addNode(node);
+    assertEquals(node, pending.get(1, TimeUnit.SECONDS));
+    assertEquals(node, lb.selectNodeAsync().getNow(null));
+
+    // waits for capacity, in order
+    final Lease first = lb.lease();
+    final CompletableFuture<Lease> second = lb.leaseAsync();
+    final CompletableFuture<Lease> third = lb.leaseAsync(5, TimeUnit.SECONDS);
+    final CompletableFuture<Node> cancelled = lb.selectNodeAsync();
+    assertTrue(cancelled.cancel(false));
+    assertFalse(second.isDone());
+    first.close();
+    assertEquals(node, second.get(1, TimeUnit.SECONDS).getNode());
+    assertFalse(third.isDone());
+    second.get().close();
+    third.get(1, TimeUnit.SECONDS).close();
+    assertEquals(0, node.getInFlight());
+
+    // times out while the only node stays saturated
+    final Lease held = lb.lease();
+    try {
+      lb.leaseAsync(50, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS);
+      fail("Expected the lease to time out");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof TimeoutException);
+    }
+    held.close();
+    assertEquals(0, node.getInFlight());
+  }
+
+  @Test
+  public void testExclusion() {
+    final IdProvider idProvider = new RandomIdProvider();
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < 5; iter++) {
+      final Node node = new Node(idProvider);
+      node.setLoadValue(iter);
+      node.setWeightValue(1);
+      nodes.add(node);
+    }
+    final Exclusion exclusion = new Exclusion(2);
+    assertTrue(exclusion.add(nodes.get(0)));
+    assertFalse(exclusion.add(nodes.get(0)));
+    assertTrue(exclusion.add(nodes.get(1)));
+
+    // retries never land on an excluded node, whatever the strategy
+    for (final LoadBalancer lb : new LoadBalancer[] {new RoundRobinLB(),
+        new RRandomChoicesOfNNodesLB(2), new LeastOutstandingLB(), new PeakEwmaLB(),
+        new WeightedRandomLB(), new WeightedRoundRobinLB(), new ConsistentHashLB(16),
+        new BoundedLoadConsistentHashLB(), new MaglevLB()}) {
+      assertNull(lb.selectNode(exclusion));
+      lb.addNodes(nodes);
+      for (int iter = 0; iter < 50; iter++) {
+        assertFalse(exclusion.contains(lb.selectNode(exclusion)));
+        assertFalse(exclusion.contains(lb.selectNode("key-" + iter, exclusion)));
+      }
+      final Node[] hedged = new Node[2];
+      assertEquals(2, lb.selectHedged(exclusion, hedged));
+      assertTrue(hedged[0] != hedged[1]);
+      assertFalse(exclusion.contains(hedged[0]) || exclusion.contains(hedged[1]));
+      assertEquals(2, exclusion.size());
+    }
+
+    // the least loaded eligible nodes win, best first
+    final RRandomChoicesOfNNodesLB lb = new RRandomChoicesOfNNodesLB(nodes.size());
+    lb.addNodes(nodes);
+    assertEquals(nodes.get(2), lb.selectNode(exclusion));
+    final Node[] hedged = new Node[2];
+    assertEquals(2, lb.selectHedged(exclusion, hedged));
+    assertArrayEquals(new Node[] {nodes.get(2), nodes.get(3)}, hedged);
+
+    // keyed retries move on to a stable spare node
+    final ConsistentHashLB ring = new ConsistentHashLB(16);
+    ring.addNodes(nodes);
+    final Exclusion tried = new Exclusion();
+    tried.add(ring.selectNode("sticky"));
+    final Node spare = ring.selectNode("sticky", tried);
+    for (int iter = 0; iter < 10; iter++) {
+      assertEquals(spare, ring.selectNode("sticky", tried));
+    }
+    for (final Node node : nodes) {
+      tried.add(node);
+    }
+    assertNull(ring.selectNode("sticky", tried));
+    tried.clear();
+    assertTrue(tried.isEmpty());
+  }
+
+  @Test
+  public void testSwitchableLoadBalancer() throws Exception {
+    final IdProvider idProvider = new RandomIdProvider();
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < 4; iter++) {
+      final Node node = new Node(idProvider);
+      node.setLoadValue(iter);
+      node.setWeightValue(1);
+      nodes.add(node);
+    }
+    final SwitchableLoadBalancer lb = new SwitchableLoadBalancer(LBStrategy.ROUND_ROBIN);
+    lb.addNodes(nodes);
+    lb.setConcurrencyLimit(new AdaptiveConcurrencyLimit(4, 1, 8, 100L, TimeUnit.MILLISECONDS));
+    final Lease lease = lb.lease();
+    assertNotNull(lease);
+    final Node leased = lease.getNode();
+    assertEquals(1, leased.getInFlight());
+    // adapted limits survive the switch
+    lb.recordResponse(leased, TimeUnit.SECONDS.toNanos(1L), true);
+    assertEquals(3, leased.getConcurrencyLimit());
+
+    final LoadBalancer previous =
+        lb.switchTo(LBStrategy.SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES);
+    assertEquals(LBStrategy.ROUND_ROBIN, previous.getStrategy());
+    assertEquals(LBStrategy.SELECT_1_OF_R_RANDOM_CHOICES_FROM_N_NODES, lb.getStrategy());
+    assertEquals(nodes.size(), lb.listNodes().size());
+    assertTrue(lb.listNodes().containsAll(nodes));
+    assertEquals(1, leased.getInFlight());
+    assertEquals(3, leased.getConcurrencyLimit());
+    assertNotNull(lb.getConcurrencyLimit());
+    for (int iter = 0; iter < 20; iter++) {
+      assertTrue(nodes.contains(lb.selectNode()));
+    }
+    // leases from before the switch are released against their own balancer
+    lease.release();
+    assertEquals(0, leased.getInFlight());
+
+    // tuned instances are switched to as is, but only when empty
+    lb.switchTo(new ConsistentHashLB(16));
+    assertEquals(LBStrategy.CONSISTENT_HASH, lb.getStrategy());
+    assertEquals(lb.selectNode("sticky"), lb.selectNode("sticky"));
+    try {
+      lb.switchTo(previous);
+      fail("switched to a load balancer with nodes");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      LoadBalancerFactory.newLoadBalancer(LBStrategy.ZONE_AWARE);
+      fail("created a zone-aware load balancer without a zone strategy");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(LBStrategy.ZONE_AWARE,
+        LoadBalancerFactory.newZoneAware("zone-0", LBStrategy.ROUND_ROBIN).getStrategy());
+
+    // ejected nodes stay ejected across a switch until due, and can be ejected again after
+    final SwitchableLoadBalancer ejecting = new SwitchableLoadBalancer(LBStrategy.ROUND_ROBIN);
+    ejecting.addNodes(nodes);
+    final OutlierDetector detector =
+        new OutlierDetector(1, 50, 10, 50, 1, 200, 400, TimeUnit.MILLISECONDS);
+    ejecting.setOutlierDetector(detector);
+    final Node failing = nodes.get(0);
+    ejecting.recordResponse(failing, 1000L, false);
+    assertTrue(detector.isEjected(failing));
+    ejecting.switchTo(LBStrategy.LEAST_OUTSTANDING);
+    assertTrue(detector.isEjected(failing));
+    for (int iter = 0; iter < 20; iter++) {
+      assertTrue(ejecting.selectNode() != failing);
+    }
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (detector.isEjected(failing) && System.nanoTime() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertFalse(detector.isEjected(failing));
+    boolean readmitted = false;
+    for (int iter = 0; iter < 20; iter++) {
+      readmitted |= ejecting.selectNode() == failing;
+    }
+    assertTrue(readmitted);
+    ejecting.recordResponse(failing, 1000L, false);
+    assertTrue(detector.isEjected(failing));
+    assertEquals(2, detector.getEjections(failing));
+
+    // latency averages carry over between peak EWMA balancers
+    final SwitchableLoadBalancer latency = new SwitchableLoadBalancer(LBStrategy.PEAK_EWMA);
+    latency.addNodes(nodes);
+    latency.recordResponse(nodes.get(1), TimeUnit.MILLISECONDS.toNanos(100), true);
+    latency.switchTo(LBStrategy.PEAK_EWMA);
+    final PeakEwmaLB switched = (PeakEwmaLB) latency.getCurrent();
+    assertTrue(switched.cost(nodes.get(1)) > TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(0.0, switched.cost(nodes.get(2)), 0.0);
+  }
+
+  @Test
+  public void testAdaptiveRandomChoices() {
+    final IdProvider idProvider = new RandomIdProvider();
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < 6; iter++) {
+      final Node node = new Node(idProvider);
+      node.setLoadValue(1.0f);
+      nodes.add(node);
+    }
+    nodes.get(5).setLoadValue(20.0f);
+    final RRandomChoicesOfNNodesLB lb = new RRandomChoicesOfNNodesLB(2);
+    lb.addNodes(nodes);
+    // retune on every selection, scanning all loads
+    lb.setAdaptiveChoices(new AdaptiveRandomChoices(1, 8, 0.1, 0.5, 1, 64));
+
+    // skewed loads raise R, but never beyond the number of nodes
+    for (int iter = 0; iter < 10; iter++) {
+      assertNotNull(lb.selectNode());
+    }
+    assertEquals(6, lb.getRandomChoices());
+
+    // R backs off if the last raise left the fleet less balanced
+    lb.overrideRandomChoices(3);
+    lb.selectNode();
+    assertEquals(4, lb.getRandomChoices());
+    nodes.get(5).setLoadValue(100.0f);
+    lb.selectNode();
+    assertEquals(3, lb.getRandomChoices());
+
+    // balanced loads lower R down to its floor
+    nodes.get(5).setLoadValue(1.0f);
+    for (int iter = 0; iter < 10; iter++) {
+      assertNotNull(lb.selectNode());
+    }
+    assertEquals(1, lb.getRandomChoices());
+
+    // a shrinking fleet clamps R right away
+    nodes.get(5).setLoadValue(20.0f);
+    for (int iter = 0; iter < 10; iter++) {
+      lb.selectNode();
+    }
+    assertEquals(6, lb.getRandomChoices());
+    lb.removeNode(nodes.get(0));
+    lb.removeNode(nodes.get(1));
+    assertEquals(4, lb.getRandomChoices());
+
+    // without adaptation R stays put
+    lb.setAdaptiveChoices(null);
+    nodes.get(5).setLoadValue(1.0f);
+    for (int iter = 0; iter < 10; iter++) {
+      lb.selectNode();
+    }
+    assertEquals(4, lb.getRandomChoices());
+  }
+
+  @Test
+  public void testLatencyHistogram() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0L, histogram.valueAtPercentile(99.0));
+    for (long value = 1; value <= 10000; value++) {
+      histogram.record(value * 1000L);
+    }
+    assertEquals(10000, histogram.getTotalCount());
+    // log-linear buckets bound the relative error to ~3%
+    assertEquals(5000000.0, histogram.valueAtPercentile(50.0), 5000000.0 * 0.035);
+    assertEquals(9900000.0, histogram.valueAtPercentile(99.0), 9900000.0 * 0.035);
+    assertEquals(10000000.0, histogram.valueAtPercentile(100.0), 10000000.0 * 0.035);
+  }
+
+  @Test
+  public void testLeastOutstandingLB() {
+    final LoadBalancer lb = new LeastOutstandingLB();
+    assertEquals(LBStrategy.LEAST_OUTSTANDING, lb.getStrategy());
+    assertNull(lb.lease());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 4;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+
+    // exact scan keeps outstanding requests perfectly level
+    final Lease[] leases = new Lease[nodeCount * 3];
+    for (int iter = 0; iter < leases.length; iter++) {
+      leases[iter] = lb.lease();
+      assertNotNull(leases[iter]);
+    }
+    for (Node node : lb.listNodes()) {
+      assertEquals(3, node.getInFlight());
+    }
+
+    // released capacity is preferred right away
+    final Node drained = leases[0].getNode();
+    assertTrue(leases[0].release());
+    assertFalse(leases[0].release());
+    assertEquals(2, drained.getInFlight());
+    try (Lease lease = lb.lease()) {
+      assertEquals(drained, lease.getNode());
+      assertEquals(3, drained.getInFlight());
+    }
+    assertEquals(2, drained.getInFlight());
+
+    for (Lease lease : leases) {
+      lease.close();
+    }
+    for (Node node : lb.listNodes()) {
+      assertEquals(0, node.getInFlight());
+    }
+  }
+
+  @Test
+  public void testPeakEwmaLB() throws Exception {
+    final PeakEwmaLB lb = new PeakEwmaLB(2, 20, TimeUnit.MILLISECONDS);
+    assertEquals(LBStrategy.PEAK_EWMA, lb.getStrategy());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final Node slow = new Node(idProvider);
+    final Node fast = new Node(idProvider);
+    lb.addNode(slow);
+    lb.addNode(fast);
+
+    lb.recordResponse(slow, TimeUnit.MILLISECONDS.toNanos(100), true);
+    lb.recordResponse(fast, TimeUnit.MILLISECONDS.toNanos(1), true);
+    assertTrue(lb.cost(slow) > lb.cost(fast));
+    for (int iter = 0; iter < 10; iter++) {
+      assertEquals(fast, lb.selectNode());
+    }
+
+    // a latency spike is picked up immediately
+    lb.recordResponse(fast, TimeUnit.MILLISECONDS.toNanos(500), false);
+    assertEquals(slow, lb.selectNode());
+
+    // outstanding requests multiply the predicted cost
+    final double idleCost = lb.cost(slow);
+    try (Lease lease = lb.lease()) {
+      assertEquals(slow, lease.getNode());
+      assertTrue(lb.cost(slow) > idleCost);
+    }
+
+    // idle nodes recover as the averages decay
+    Thread.sleep(500);
+    assertTrue(lb.cost(fast) < TimeUnit.MILLISECONDS.toNanos(1));
+    assertTrue(lb.cost(slow) < TimeUnit.MILLISECONDS.toNanos(1));
+
+    // removed nodes drop their averages, late responses do not bring them back
+    lb.recordResponse(slow, TimeUnit.MILLISECONDS.toNanos(100), true);
+    assertTrue(lb.removeNode(slow));
+    assertEquals(0.0, lb.cost(slow), 0.0);
+    lb.recordResponse(slow, TimeUnit.MILLISECONDS.toNanos(100), true);
+    assertEquals(0.0, lb.cost(slow), 0.0);
+    assertTrue(lb.addNode(slow));
+    assertEquals(0.0, lb.cost(slow), 0.0);
+  }
+
+  @Test
+  public void testConsistentHashLB() {
+    final ConsistentHashLB lb = new ConsistentHashLB();
+    assertEquals(LBStrategy.CONSISTENT_HASH, lb.getStrategy());
+    assertNull(lb.selectNode("empty"));
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 10;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+
+    final int keys = 10000;
+    final Node[] owners = new Node[keys];
+    for (int key = 0; key < keys; key++) {
+      owners[key] = lb.selectNode("session-" + key);
+      assertEquals(owners[key], lb.selectNode("session-" + key));
+    }
+
+    // adding a node only moves keys onto the new node
+    final Node added = new Node(idProvider);
+    lb.addNode(added);
+    int moved = 0;
+    for (int key = 0; key < keys; key++) {
+      final Node owner = lb.selectNode("session-" + key);
+      if (owner != owners[key]) {
+        assertEquals(added, owner);
+        moved++;
+      }
+    }
+    assertTrue(moved > 0 && moved < keys / 5);
+
+    // removing it again restores the previous routing exactly
+    lb.removeNode(added);
+    for (int key = 0; key < keys; key++) {
+      assertEquals(owners[key], lb.selectNode("session-" + key));
+    }
+
+    // incrementally maintained ring matches a from-scratch build
+    final HashRing incremental = lb.ring();
+    final HashRing rebuilt = HashRing.build(lb.registry.snapshot(),
+        lb.registry.getWeightGeneration(), ConsistentHashLB.DEFAULT_VIRTUAL_NODES);
+    assertArrayEquals(rebuilt.hashes(), incremental.hashes());
+    assertArrayEquals(rebuilt.owners(), incremental.owners());
+  }
+
+  @Test
+  public void testConsistentHashLBWeights() throws Exception {
+    final LoadBalancer lb = new ConsistentHashLB();
+    final IdProvider idProvider = new RandomIdProvider();
+    final Node light = new Node(idProvider);
+    light.setWeight(new Weight(1));
+    final Node heavy = new Node(idProvider);
+    heavy.setWeight(new Weight(3));
+    lb.addNode(light);
+    lb.addNode(heavy);
+
+    int heavySelections = 0;
+    final int keys = 20000;
+    for (long key = 0; key < keys; key++) {
+      if (lb.selectNode(key) == heavy) {
+        heavySelections++;
+      }
+    }
+    assertEquals(0.75, heavySelections / (double) keys, 0.05);
+
+    // weight changes publish a new ring on the scheduler thread, selections only read it
+    final ConsistentHashLB ring = (ConsistentHashLB) lb;
+    final HashRing before = ring.ring();
+    heavy.setWeightValue(1);
+    awaitScheduled();
+    final HashRing after = ring.ring();
+    assertTrue(before != after);
+    assertEquals(ring.registry.getWeightGeneration(), after.getWeightGeneration());
+    assertEquals(2 * ConsistentHashLB.DEFAULT_VIRTUAL_NODES, after.size());
+    assertTrue(after == ring.ring());
+
+    // weights are normalized, large ones neither inflate the ring nor overflow it
+    heavy.setWeightValue(1000);
+    awaitScheduled();
+    assertEquals(2 * ConsistentHashLB.DEFAULT_VIRTUAL_NODES, ring.ring().size(), 2);
+    heavy.setWeightValue(Integer.MAX_VALUE);
+    awaitScheduled();
+    assertEquals(2 * ConsistentHashLB.DEFAULT_VIRTUAL_NODES, ring.ring().size(), 2);
+    final Node added = new Node(idProvider);
+    added.setWeightValue(Integer.MAX_VALUE);
+    assertTrue(ring.addNode(added));
+    // derived incrementally at the same points per weight, within twice the budget
+    assertTrue(ring.ring().size() <= 2 * 3 * ConsistentHashLB.DEFAULT_VIRTUAL_NODES);
+    heavySelections = 0;
+    for (long key = 0; key < keys; key++) {
+      if (lb.selectNode(key) == light) {
+        heavySelections++;
+      }
+    }
+    assertTrue(heavySelections < keys / 100);
+  }
+
+  @Test
+  public void testMaglevLB() {
+    final MaglevLB lb = new MaglevLB(MaglevLB.DEFAULT_TABLE_SIZE);
+    assertEquals(LBStrategy.MAGLEV, lb.getStrategy());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 10;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+
+    final int keys = 20000;
+    final Node[] owners = new Node[keys];
+    final Map<Node, Integer> nodeSelectionFrequency = new HashMap<>();
+    for (int key = 0; key < keys; key++) {
+      owners[key] = lb.selectNode(key);
+      nodeSelectionFrequency.merge(owners[key], 1, Integer::sum);
+    }
+    assertEquals(nodeCount, nodeSelectionFrequency.size());
+    for (Integer frequency : nodeSelectionFrequency.values()) {
+      assertEquals(keys / nodeCount, frequency, keys / nodeCount * 0.15);
+    }
+
+    // adding an 11th node should ideally remap 1/11th of the table
+    final Node added = new Node(idProvider);
+    lb.addNode(added);
+    assertTrue(lb.getLastDisruption() > 5.0 && lb.getLastDisruption() < 15.0);
+    int moved = 0;
+    for (int key = 0; key < keys; key++) {
+      if (lb.selectNode(key) != owners[key]) {
+        moved++;
+      }
+    }
+    assertTrue(moved < keys * 0.15);
+
+    // the table is a pure function of membership, so removal restores it
+    lb.removeNode(added);
+    for (int key = 0; key < keys; key++) {
+      assertEquals(owners[key], lb.selectNode(key));
+    }
+  }
+
+  @Test
+  public void testMaglevLBLargeFleet() {
+    final MaglevLB lb = new MaglevLB();
+    final IdProvider idProvider = new RandomIdProvider();
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < 700; iter++) {
+      nodes.add(new Node(idProvider));
+    }
+    // outgrowing a hundredth of the table doubles it once
+    lb.addNodes(nodes);
+    final int size = lb.getTableSize();
+    assertTrue(size >= 2 * MaglevLB.DEFAULT_TABLE_SIZE && MaglevTable.isPrime(size));
+
+    final int keys = 20000;
+    final Node[] owners = new Node[keys];
+    for (int key = 0; key < keys; key++) {
+      owners[key] = lb.selectNode(key);
+    }
+    // further membership changes keep the table size and so the affinity of most keys
+    final Node added = new Node(idProvider);
+    lb.addNode(added);
+    assertEquals(size, lb.getTableSize());
+    assertTrue(lb.getLastDisruption() < 2.0);
+    int moved = 0;
+    for (int key = 0; key < keys; key++) {
+      if (lb.selectNode(key) != owners[key]) {
+        moved++;
+      }
+    }
+    assertTrue(moved < keys * 0.02);
+    lb.removeNode(added);
+    lb.removeNode(nodes.get(0));
+    assertEquals(size, lb.getTableSize());
+    assertTrue(lb.getLastDisruption() < 2.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaglevLBRequiresPrimeTable() {
+    new MaglevLB(65536);
+  }
+
+  @Test
+  public void testBoundedLoadConsistentHashLB() {
+    final BoundedLoadConsistentHashLB lb =
+        new BoundedLoadConsistentHashLB(ConsistentHashLB.DEFAULT_VIRTUAL_NODES, 0.0);
+    assertEquals(LBStrategy.BOUNDED_LOAD_CONSISTENT_HASH, lb.getStrategy());
+
+    final IdProvider idProvider = new RandomIdProvider();
+    final int nodeCount = 4;
+    for (int iter = 0; iter < nodeCount; iter++) {
+      lb.addNode(new Node(idProvider));
+    }
+    final Node owner = lb.selectNode("hot-tenant");
+
+    // a hot key spills over instead of piling onto its owner
+    final int leaseCount = nodeCount * 5;
+    final Lease[] leases = new Lease[leaseCount];
+    for (int iter = 0; iter < leaseCount; iter++) {
+      leases[iter] = lb.lease("hot-tenant");
+    }
+    assertEquals(leaseCount, lb.getInFlight());
+    for (Node node : lb.listNodes()) {
+      assertEquals(5, node.getInFlight());
+    }
+
+    // affinity returns once the load drains
+    for (Lease lease : leases) {
+      lease.release();
+    }
+    assertEquals(0, lb.getInFlight());
+    assertEquals(owner, lb.selectNode("hot-tenant"));
+
+    // looser bounds let the owner absorb more of the hot key
+    lb.setEpsilon(1.0);
+    for (int iter = 0; iter < leaseCount; iter++) {
+      leases[iter] = lb.lease("hot-tenant");
+    }
+    assertTrue(owner.getInFlight() > 5);
+    assertTrue(owner.getInFlight() <= lb.capacity(nodeCount));
+    for (Lease lease : leases) {
+      lease.close();
+    }
+  }
+
+  @Test
+  public void testNodeRegistrySnapshots() {
+    final LoadBalancer lb = new RoundRobinLB();
+    final IdProvider idProvider = new RandomIdProvider();
+
+    final Node node1 = new Node(idProvider);
+    final Node node2 = new Node(idProvider);
+    assertTrue(lb.addNode(node1));
+    assertFalse(lb.addNode(node1));
+    final List<Node> before = lb.listNodes();
+    assertTrue(lb.addNode(node2));
+
+    // previously handed out views are immutable snapshots
+    assertEquals(1, before.size());
+    assertEquals(2, lb.listNodes().size());
+
+    assertTrue(lb.removeNode(node1));
+    assertFalse(lb.removeNode(node1));
+    assertEquals(1, lb.listNodes().size());
+    assertEquals(node2, lb.selectNode());
+
+    // snapshots resolve members by handle, and nothing else
+    final NodeRegistry registry = new NodeRegistry();
+    final List<Node> nodes = new ArrayList<>();
+    for (int iter = 0; iter < 100; iter++) {
+      nodes.add(new Node(idProvider));
+    }
+    assertEquals(100, registry.addNodes(nodes));
+    final NodeSnapshot snapshot = registry.snapshot();
+    for (int index = 0; index < nodes.size(); index++) {
+      assertEquals(index, snapshot.indexOfHandle(nodes.get(index).getHandle()));
+    }
+    assertEquals(-1, snapshot.indexOfHandle(node1.getHandle()));
+    assertEquals(-1, NodeSnapshot.EMPTY.indexOfHandle(node2.getHandle()));
+  }
+
+  @Test
+  public void testAddNodes() {
+    final LoadBalancer lb = new RoundRobinLB();
+    final IdProvider idProvider = new RandomIdProvider();
+    final Node member = new Node(idProvider);
+    final Node node1 = new Node(idProvider);
+    final Node node2 = new Node(idProvider);
+    assertTrue(lb.addNode(member));
+
+    // members and duplicates within the batch are skipped
+    assertEquals(2, lb.addNodes(Arrays.asList(member, node1, node2, node1)));
+    assertEquals(Arrays.asList(member, node1, node2), lb.listNodes());
+    assertEquals(0, lb.addNodes(Arrays.asList(node2, member)));
+    assertEquals(0, lb.addNodes(new ArrayList<Node>()));
+    assertEquals(3, lb.listNodes().size());
+
+    // nulls are rejected without adding anything
+    final Node node3 = new Node(idProvider);
+    try {
+      lb.addNodes(Arrays.asList(node3, null));
+      fail("added a null node");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      lb.addNodes(null);
+      fail("added a null collection");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(3, lb.listNodes().size());
+    assertNull(lb.getNode(node3.getId()));
+  }
+
+  @Test
+  public void testConcurrentSelectionsNeverDrop() throws Exception {
+    final LoadBalancer[] lbs = new LoadBalancer[] {new RoundRobinLB(), new WeightedRoundRobinLB(),
+        new RRandomChoicesOfNNodesLB(2)};
+    final IdProvider idProvider = new RandomIdProvider();
+    final int threads = 8;
+    final int rounds = 2000;
+    for (final LoadBalancer lb : lbs) {
+      for (int iter = 0; iter < 4; iter++) {
+        Node node = new Node(idProvider);
+        node.setWeight(new Weight(iter + 1));
+        lb.addNode(node);
+      }
+      final ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicInteger nullSelections = new AtomicInteger();
+      for (int thread = 0; thread < threads; thread++) {
+        executor.submit(() -> {
+          start.await();
+          for (int iter = 0; iter < rounds; iter++) {
+            if (lb.selectNode() == null) {
+              nullSelections.incrementAndGet();
+            }
+          }
+          return null;
+        });
+      }
+      // churn membership while selections are running, always leaving some nodes registered
+      final Future<?> churn = executor.submit(() -> {
+        start.await();
+        for (int iter = 0; iter < rounds / 10; iter++) {
+          Node node = new Node(idProvider);
+          node.setWeight(new Weight(1));
+          assertTrue(lb.addNode(node));
+          assertTrue(lb.removeNode(node));
+        }
+        return null;
+      });
+      start.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      churn.get();
+      assertEquals(0, nullSelections.get());
+      assertEquals(4, lb.listNodes().size());
+    }
+  }
+
+  /**
+   * Wait for work already handed to the scheduler, e.g. rebuilds after weight changes: the single
+   * scheduler thread runs tasks without delay in the order they were scheduled.
+   */
+  private static void awaitScheduled() throws Exception {
+    Scheduler.schedule(() -> {}, 0L).get(5, TimeUnit.SECONDS);
   }
 
 }